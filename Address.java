@@ -4,17 +4,39 @@
 public class Address {	
 	String EW_name, NS_name;	
 	int EW, NS;         
+	Resolved resolved; // node id on the last map that resolved it, null until Map.id() does
+	
+	/* a node id together with the map it belongs to, set in one go so a thread 
+	 * never pairs one map's id with another map. */
+	static final class Resolved {
+		final Map map;
+		final int id;
+		
+		Resolved(Map map, int id) {
+			this.map = map;
+			this.id = id;
+		}
+	}
 	
 	public Address(String EW, String NS) {
 		this.EW_name = EW;
 		this.NS_name = NS;
-		// coordinate positions are set when map file is read in.
+		// coordinate positions are set when map file is read in,
+		// or the first time the map is asked for this address's id.
 	}
 	
 	/* compares to see if this address is the same as a */
 	public boolean equals(Address a) {
 		return (this.EW_name.equals(a.EW_name) && this.NS_name.equals(a.NS_name));
 	}
+	
+	public boolean equals(Object o) {
+		return (o instanceof Address) && equals((Address) o);
+	}
+	
+	public int hashCode() {
+		return 31 * EW_name.hashCode() + NS_name.hashCode();
+	}
 		
 	public String toString() {
 		return EW_name + "&" + NS_name;
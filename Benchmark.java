@@ -0,0 +1,1221 @@
+/*********************************************************************************************
+ * tclo, melissatan
+ *
+ * Benchmarks for the map and dispatch code. Not part of the simulation itself.
+ *
+ * Usage: java Benchmark landmarks [k] [queries]
+ *    --> compares nodes expanded and query time of path() with the plain Manhattan
+ *        heuristic and with k landmarks, on the bundled maps and a synthetic 500x500 grid.
+ *        java Benchmark binary [size]
+ *    --> load time and grid memory of a synthetic size x size map (2000 by default),
+ *        read from the text format and from the memory-mapped binary format.
+ *        java Benchmark parse [size ...]
+ *    --> text map parsing speed, in MB/s, on synthetic size x size maps (1000 and 2000 by default).
+ *        java Benchmark routes [count]
+ *    --> bytes allocated per route as a Route and as the old Address[], and while
+ *        driving along the routes, on the bundled maps.
+ *        java Benchmark closures [changes] [trials]
+ *    --> closes (and reopens) random roads on the bundled maps and a synthetic 500x500
+ *        grid, timing Map.setRoad against building a fresh Map, and checks the repaired
+ *        distances against the fresh one. Then Simulate.runTrial on hydepark and 21x20
+ *        (seeds 1 to trials, 50 by default) with roads closing under the vans (see
+ *        driving); average total and in-van times, passengers sent back to dispatch,
+ *        and whether any van was left with no route to a stop it could get to.
+ *        java Benchmark check [trials]
+ *    --> runs the hpparam passenger streams (seeds 1 to trials, 20 by default) on the
+ *        bundled maps, as given and with one van taking five times the calls, and
+ *        checks every Van.check() and check1() against the old way of working them out,
+ *        which tried each insertion pair and added up the weights below it every time.
+ *        The vans keep to Simulate.timeCap and a pickup window of CHECK_WINDOW ticks.
+ *        java Benchmark dispatch [trials]
+ *    --> runs the hpparam passenger streams on the bundled maps with 4 and 16 vans, and
+ *        reports how many Van.check calls Dispatcher.compare skips, checking that it picks
+ *        the same van and positions as checking every van.
+ *        java Benchmark parallel [vans] [threads ...]
+ *    --> a fleet of vans (256 by default) taking twenty times the hpparam calls, on hydepark
+ *        and a synthetic 100x100 grid, dispatched with each no. of threads (1, 2, 4, ... up
+ *        to the no. of cores by default); time per call, and whether the picks all match.
+ *        java Benchmark nearest [k]
+ *    --> fleets of 64, 256 and 1024 vans spread over a synthetic 100x100 grid, taking
+ *        twenty times the hpparam calls, dispatched by checking every van's bound, with a
+ *        VanIndex (exact), and with just the k nearest vans (8 by default) by Mdist and by
+ *        road; time and checks per call, and how often and by how much the k nearest miss.
+ *        java Benchmark batch [trials]
+ *    --> Simulate.runTrial on the bundled maps (seeds 1 to trials, 200 by default), placing
+ *        passengers one at a time and a tick at a time (Dispatcher.dispatchBatch), with the
+ *        hpparam fleet and with 16 vans taking five times the calls; average total and
+ *        in-van times, and time per trial.
+ *        java Benchmark optimize [trials]
+ *    --> Simulate.runTrial on the bundled maps (seeds 1 to trials, 200 by default), without
+ *        ScheduleOptimizer and with 200 and 1000 microseconds of CPU per tick for it, with the
+ *        hpparam fleet and with 16 vans taking five times the calls; average total and in-van
+ *        times, how much weighted cost it took off the schedules and the CPU it used per trial.
+ *        java Benchmark reassign [trials]
+ *    --> Simulate.runTrial on the bundled maps (seeds 1 to trials, 200 by default), without
+ *        Reassigner and with a round every 5 ticks and every tick, with the hpparam fleet and
+ *        with 16 vans taking five times the calls; average total and in-van times, time per
+ *        trial, and passengers moved and weighted cost taken off per trial.
+ *        java Benchmark events [trials]
+ *    --> Simulate.runTrial on the bundled maps (seeds 1 to trials, 200 by default), a tick
+ *        at a time and skipping to the next call or stop (Simulate.eventDriven), with the
+ *        hpparam shift and with a night a hundred times as long at a tenth of the call rate;
+ *        time per trial, ticks run per trial, and whether the results all match.
+ *        java Benchmark legs [trials]
+ *    --> 16 vans taking five times the hpparam calls (seeds 1 to trials, 20 by default), on
+ *        hydepark and a synthetic 100x100 grid (no distance table), with and without the
+ *        legs between stops kept in the schedule (Simulate.Trial.keepLegs); map queries made outside of
+ *        dispatch (assigning and driving), nodes path() expanded, time per trial, and whether
+ *        the picks match.
+ *
+ * The benchmarks that run passengers all do it through Simulate.runTrial (see
+ * runTrials), putting the pick for each call through a Simulate.Picker where
+ * they time or check it, so they dispatch the way Simulate does. What they
+ * change about a trial goes in its Simulate.Trial.
+ *
+ * Synthetic maps are written to a temp file in the usual map format (see
+ * writeSyntheticMap) and read back in with the Map constructor.
+ *
+ *********************************************************************************************/
+
+import java.io.*;
+import java.util.Random;
+
+public class Benchmark {
+	static String[] bundledMaps = {"hydepark", "21x20", "5x5"};
+	static final int CHECK_WINDOW = 15; // pickup window for Benchmark check
+	static final int CLOSE_EVERY = 5;   // ticks between roads closing, for Benchmark closures
+	static final int MOST_CLOSED = 4;   // roads closed at once; the oldest opens again when another closes
+
+	public static void main(String[] args) {
+		Map.verbose = true;
+		if (args.length < 1) {
+			System.out.println("Usage: Benchmark landmarks [k] [queries]");
+			System.out.println("       Benchmark binary [size]");
+			System.out.println("       Benchmark parse [size ...]");
+			System.out.println("       Benchmark routes [count]");
+			System.out.println("       Benchmark closures [changes] [trials]");
+			System.out.println("       Benchmark check [trials]");
+			System.out.println("       Benchmark dispatch [trials]");
+			System.out.println("       Benchmark parallel [vans] [threads ...]");
+			System.out.println("       Benchmark nearest [k]");
+			System.out.println("       Benchmark batch [trials]");
+			System.out.println("       Benchmark optimize [trials]");
+			System.out.println("       Benchmark reassign [trials]");
+			System.out.println("       Benchmark events [trials]");
+			System.out.println("       Benchmark legs [trials]");
+			return;
+		}
+		if (args[0].equals("landmarks")) {
+			int k = (args.length > 1) ? Integer.parseInt(args[1]) : Map.DEFAULT_LANDMARKS;
+			int queries = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+			for (String f : bundledMaps)
+				landmarks(f, f, k, queries);
+			landmarks("synthetic 500x500", syntheticMap(500, 500, 1), k, queries);
+		}
+		else if (args[0].equals("binary")) {
+			int size = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+			binary(size);
+		}
+		else if (args[0].equals("parse")) {
+			if (args.length > 1) {
+				for (int i = 1; i < args.length; i++)
+					parse(Integer.parseInt(args[i]));
+			} else {
+				parse(1000);
+				parse(2000);
+			}
+		}
+		else if (args[0].equals("routes")) {
+			int count = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+			for (String f : bundledMaps)
+				routes(f, count);
+		}
+		else if (args[0].equals("closures")) {
+			int changes = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+			for (String f : bundledMaps)
+				closures(f, f, changes);
+			closures("synthetic 500x500", syntheticMap(500, 500, 1), changes);
+			int trials = (args.length > 2) ? Integer.parseInt(args[2]) : 50;
+			for (String f : new String[] {"hydepark", "21x20"})
+				driving(f, trials);
+		}
+		else if (args[0].equals("check")) {
+			int trials = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+			for (String f : new String[] {"hydepark", "21x20"}) {
+				check(f, trials, 0);
+				check(f, trials, 1);
+			}
+		}
+		else if (args[0].equals("dispatch")) {
+			int trials = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+			for (String f : new String[] {"hydepark", "21x20"}) {
+				dispatch(f, trials, 4);
+				dispatch(f, trials, 16);
+			}
+		}
+		else if (args[0].equals("parallel")) {
+			int vans = (args.length > 1) ? Integer.parseInt(args[1]) : 256;
+			int[] threads;
+			if (args.length > 2) {
+				threads = new int[args.length - 2];
+				for (int i = 2; i < args.length; i++)
+					threads[i - 2] = Integer.parseInt(args[i]);
+			} else {
+				int cores = Runtime.getRuntime().availableProcessors();
+				int count = 1;
+				while ((1 << count) < cores)
+					count++;
+				threads = new int[(cores == 1) ? 1 : count + 1];
+				for (int i = 0; i < threads.length; i++)
+					threads[i] = Math.min(1 << i, cores);
+			}
+			parallel("hydepark", "hydepark", vans, threads);
+			parallel("synthetic 100x100", syntheticMap(100, 100, 1), vans, threads);
+		}
+		else if (args[0].equals("nearest")) {
+			int k = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+			String file = syntheticMap(100, 100, 1);
+			for (int vans : new int[] {64, 256, 1024}) {
+				nearest(file, vans, -1, false);
+				nearest(file, vans, 0, false);
+				nearest(file, vans, k, false);
+				nearest(file, vans, k, true);
+			}
+		}
+		else if (args[0].equals("batch")) {
+			int trials = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+			for (String f : new String[] {"hydepark", "21x20"}) {
+				batch(f, trials, 0);
+				batch(f, trials, 16);
+			}
+		}
+		else if (args[0].equals("optimize")) {
+			int trials = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+			for (String f : new String[] {"hydepark", "21x20"}) {
+				optimize(f, trials, 0);
+				optimize(f, trials, 16);
+			}
+		}
+		else if (args[0].equals("reassign")) {
+			int trials = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+			for (String f : new String[] {"hydepark", "21x20"}) {
+				reassign(f, trials, 0);
+				reassign(f, trials, 16);
+			}
+		}
+		else if (args[0].equals("events")) {
+			int trials = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+			for (String f : new String[] {"hydepark", "21x20"}) {
+				events(f, trials, false);
+				events(f, trials, true);
+			}
+		}
+		else if (args[0].equals("legs")) {
+			int trials = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+			legs("hydepark", "hydepark", trials);
+			legs("synthetic 100x100", syntheticMap(100, 100, 1), trials);
+		}
+		else
+			System.out.println("Unknown benchmark " + args[0]);
+	}
+
+	/* runs the same random queries through path() with and without landmarks */
+	private static void landmarks(String name, String file, int k, int queries) {
+		Map plain = new Map(file);
+		plain.buildLandmarks(0);
+		Map alt = new Map(file);
+		alt.buildLandmarks(k);
+
+		// pick random pairs that have a path between them
+		Random rand = new Random(42);
+		int n = plain.NUM_EW * plain.NUM_NS;
+		int[] from = new int[queries];
+		int[] to = new int[queries];
+		int q = 0;
+		for (int tries = 0; q < queries && tries < 100 * queries; tries++) {
+			int a = rand.nextInt(n);
+			int b = rand.nextInt(n);
+			if (a != b && plain.isReachable(a) && plain.isReachable(b) && alt.searchDistance(a, b) >= 0) {
+				from[q] = a;
+				to[q] = b;
+				q++;
+			}
+		}
+
+		// one pass to warm up, then the timed pass
+		runQueries(plain, from, to, q);
+		runQueries(alt, from, to, q);
+		long[] p = runQueries(plain, from, to, q);
+		long[] l = runQueries(alt, from, to, q);
+
+		System.out.printf("%-18s %6d queries | Manhattan: %8.1f expanded, %8.1f us | %d landmarks: %8.1f expanded, %8.1f us | %s\n",
+				name, q, p[1] / (double) q, p[2] / 1000.0 / q,
+				k, l[1] / (double) q, l[2] / 1000.0 / q,
+				(p[0] == l[0]) ? "same distances" : "DISTANCES DIFFER");
+	}
+
+	/* Loads the same synthetic map from text and from binary. The old layout
+	 * (a Node with four neighbor references and an Address with two Strings
+	 * per cell) is estimated at 96 bytes a cell. */
+	private static void binary(int size) {
+		String text = syntheticMap(size, size, 1);
+		long start = System.nanoTime();
+		Map fromText = new Map(text);
+		long textTime = System.nanoTime() - start;
+		
+		String bin;
+		try {
+			File f = File.createTempFile("synthetic" + size + "x" + size + "-", ".bin");
+			f.deleteOnExit();
+			bin = f.getPath();
+			fromText.writeBinary(bin);
+		} catch (IOException ex) {
+			throw new RuntimeException("Benchmark: can't write binary map", ex);
+		}
+		
+		// best of a few loads, since the first one pulls the file into the page cache
+		long binTime = Long.MAX_VALUE;
+		Map fromBin = null;
+		for (int r = 0; r < 5; r++) {
+			start = System.nanoTime();
+			fromBin = new Map(bin);
+			binTime = Math.min(binTime, System.nanoTime() - start);
+		}
+		
+		// both should give the same map
+		int n = size * size;
+		boolean same = true;
+		for (int id = 0; id < n && same; id++)
+			same = fromText.isReachable(id) == fromBin.isReachable(id);
+		Random rand = new Random(7);
+		for (int q = 0; q < 200 && same; q++) {
+			int a = rand.nextInt(n);
+			int b = rand.nextInt(n);
+			if (fromText.isReachable(a) && fromText.isReachable(b))
+				same = fromText.searchDistance(a, b) == fromBin.searchDistance(a, b);
+		}
+		
+		System.out.printf("%dx%d map | text load: %8.1f ms | binary load: %6.1f ms | file: %.1f MB text, %.1f MB binary\n",
+				size, size, textTime / 1e6, binTime / 1e6,
+				new File(text).length() / 1e6, new File(bin).length() / 1e6);
+		System.out.printf("grid memory: %.1f MB packed | ~%.1f MB estimated for Node objects | %s\n",
+				fromBin.gridBytes() / 1e6, 96.0 * n / 1e6,
+				same ? "same map" : "MAPS DIFFER");
+	}
+	
+	/* Times MapParser on its own (best of a few runs, the first one also reads
+	 * the file into the page cache), and the whole Map constructor once. */
+	private static void parse(int size) {
+		String file = syntheticMap(size, size, 1);
+		double mb = new File(file).length() / 1e6;
+		long best = Long.MAX_VALUE;
+		try {
+			for (int r = 0; r < 4; r++) {
+				long start = System.nanoTime();
+				MapParser.parse(file);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Benchmark: can't read " + file, ex);
+		}
+		long start = System.nanoTime();
+		new Map(file);
+		long load = System.nanoTime() - start;
+		System.out.printf("%dx%d map, %.1f MB | parse: %8.1f ms, %6.1f MB/s | whole Map constructor: %8.1f ms\n",
+				size, size, mb, best / 1e6, mb / (best / 1e9), load / 1e6);
+	}
+	
+	/* Measures (with the JVM's per-thread allocation counter) what building
+	 * routes costs as Routes and as Address arrays, and what walking them does. */
+	private static void routes(String file, int count) {
+		Map m = new Map(file);
+		int n = m.NUM_EW * m.NUM_NS;
+		Random rand = new Random(5);
+		int[] from = new int[count];
+		int[] to = new int[count];
+		for (int q = 0; q < count; ) {
+			int a = rand.nextInt(n);
+			int b = rand.nextInt(n);
+			if (m.inLargestComponent(a) && m.inLargestComponent(b)) {
+				from[q] = a;
+				to[q] = b;
+				q++;
+			}
+		}
+		com.sun.management.ThreadMXBean mx = 
+				(com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		Route[] routes = new Route[count];
+		Address[][] arrays = new Address[count][];
+		// warm up, so class loading and the JIT don't count
+		for (int q = 0; q < count; q++)
+			m.route(from[q], to[q]).addresses(m);
+		
+		long before = mx.getThreadAllocatedBytes(tid);
+		for (int q = 0; q < count; q++)
+			routes[q] = m.route(from[q], to[q]);
+		long routeBytes = mx.getThreadAllocatedBytes(tid) - before;
+		before = mx.getThreadAllocatedBytes(tid);
+		for (int q = 0; q < count; q++)
+			arrays[q] = routes[q].addresses(m);
+		long arrayBytes = mx.getThreadAllocatedBytes(tid) - before;
+		long steps = 0;
+		before = mx.getThreadAllocatedBytes(tid);
+		for (int q = 0; q < count; q++) {
+			while (!routes[q].done()) {
+				routes[q].advance();
+				steps++;
+			}
+		}
+		long driveBytes = mx.getThreadAllocatedBytes(tid) - before;
+		System.out.printf("%-10s %5d routes, %5.1f steps avg | Route: %6.1f bytes each | Address[]: %7.1f bytes each | driving: %d bytes for %d steps\n",
+				file, count, steps / (double) count, routeBytes / (double) count,
+				arrayBytes / (double) count, driveBytes, steps);
+	}
+	
+	/* Closes random roads (reopening every other one), then compares the
+	 * repaired map with a Map freshly loaded from the changed roads. */
+	private static void closures(String name, String file, int changes) {
+		Map m = new Map(file);
+		int n = m.NUM_EW * m.NUM_NS;
+		Random rand = new Random(11);
+		int[] pairs = new int[400];
+		int q = 0;
+		for (int tries = 0; q < pairs.length && tries < 100000; tries++) {
+			int a = rand.nextInt(n);
+			if (m.isReachable(a))
+				pairs[q++] = a;
+		}
+		// warm up the row cache and landmarks (if the map has them)
+		for (int i = 0; i + 1 < q; i += 2) {
+			m.distance(pairs[i], pairs[i + 1]);
+			m.distance(pairs[i], pairs[i + 1]);
+		}
+		
+		long repairTime = 0;
+		long rows = m.getRepairedRows();
+		int done = 0;
+		int lastFrom = -1, lastTo = -1;
+		for (int tries = 0; done < changes && tries < 100 * changes; tries++) {
+			int from = rand.nextInt(n);
+			int to = from + ((rand.nextInt(2) == 0) ? 1 : m.NUM_NS) * ((rand.nextInt(2) == 0) ? 1 : -1);
+			if (!m.hasRoad(from, to))
+				continue;
+			long start = System.nanoTime();
+			m.setRoad(from, to, false);
+			if (done % 2 == 1)
+				m.setRoad(lastFrom, lastTo, true);
+			repairTime += System.nanoTime() - start;
+			lastFrom = from;
+			lastTo = to;
+			done++;
+		}
+		rows = m.getRepairedRows() - rows;
+		
+		String bin;
+		try {
+			File f = File.createTempFile("closures-", ".bin");
+			f.deleteOnExit();
+			bin = f.getPath();
+			m.writeBinary(bin);
+		} catch (IOException ex) {
+			throw new RuntimeException("Benchmark: can't write binary map", ex);
+		}
+		// (the first query picks the landmarks, on maps that use them)
+		long start = System.nanoTime();
+		Map fresh = new Map(bin);
+		fresh.searchDistance(pairs[0], pairs[1]);
+		long freshTime = System.nanoTime() - start;
+		
+		int wrong = 0;
+		for (int i = 0; i + 1 < q; i++) {
+			int a = pairs[i], b = pairs[i + 1];
+			if (m.isReachable(a) != fresh.isReachable(a))
+				wrong++;
+			else if (m.isReachable(a) && m.isReachable(b) && fresh.searchDistance(a, b) >= 0
+					&& (m.distance(a, b) != fresh.distance(a, b) || m.searchDistance(a, b) != fresh.searchDistance(a, b)))
+				wrong++;
+		}
+		System.out.printf("%-18s %4d changes | repair: %8.2f ms each, %6.1f rows each | fresh map: %8.1f ms | %s\n",
+				name, done, repairTime / 1e6 / Math.max(1, done), rows / (double) Math.max(1, done),
+				freshTime / 1e6, (wrong == 0) ? "same distances" : wrong + " DISTANCES DIFFER");
+	}
+	
+	/* Simulate.runTrial with the hpparam fleet, without road closures and
+	 * with a random road closing every CLOSE_EVERY ticks (Simulate.Trial.roadWorks),
+	 * at most MOST_CLOSED of them at once, so vans have to find their way
+	 * around them or give passengers back. Every call also looks at each
+	 * van: one with stops left and no route is stuck unless its next stop
+	 * can't be got to at all. */
+	private static void driving(String file, int trials) {
+		final Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		startInMiddle(m, e, file);
+		double[] plain = averages(m, e, trials);
+		
+		final int n = m.NUM_EW * m.NUM_NS;
+		final Random rand = new Random(11);
+		final java.util.ArrayDeque<int[]> closed = new java.util.ArrayDeque<int[]>();
+		final long[] count = new long[3]; // road changes, vans looked at, vans stuck
+		Simulate.Trial trial = new Simulate.Trial();
+		trial.roadWorks = new Simulate.RoadWorks() {
+			public int[][] changes(int t) {
+				if (t % CLOSE_EVERY != 0)
+					return new int[0][];
+				java.util.ArrayList<int[]> rv = new java.util.ArrayList<int[]>();
+				for (int tries = 0; tries < 1000; tries++) {
+					int from = rand.nextInt(n);
+					int to = from + ((rand.nextInt(2) == 0) ? 1 : m.NUM_NS) * ((rand.nextInt(2) == 0) ? 1 : -1);
+					if (!m.hasRoad(from, to))
+						continue;
+					rv.add(new int[] {from, to, 0});
+					closed.add(new int[] {from, to, 1});
+					break;
+				}
+				if (closed.size() > MOST_CLOSED)
+					rv.add(closed.poll());
+				count[0] += rv.size();
+				return rv.toArray(new int[rv.size()][]);
+			}
+		};
+		trial.picker = new Simulate.Picker() {
+			public int[] pick(Van[] vans, Passenger p, int t) {
+				for (Van v : vans) {
+					count[1]++;
+					if (v.route == null && !v.isEmpty() && m.canReach(v.here, v.getSchedule().node(0)))
+						count[2]++;
+				}
+				return Simulate.dispatcher.compare(vans, p, t);
+			}
+		};
+		double[][][] stats = new double[trials][][];
+		runTrials(m, e, 1, trials, trial, stats);
+		for (int[] road : closed)
+			m.setRoad(road[0], road[1], true);
+		
+		double att = 0, avt = 0;
+		for (double[][] s : stats) {
+			att += s[0][0];
+			avt += s[0][1];
+		}
+		System.out.printf("%-9s %2d vans | no closures: avg total time %7.3f, in-van %7.3f | closures: %7.3f, %7.3f, %5.1f road changes, %5.2f sent back per trial | %s\n",
+				file, e.numVan, plain[0], plain[1], att / trials, avt / trials,
+				count[0] / (double) trials, trial.sentBack / (double) trials,
+				(count[2] == 0) ? "no van stuck" : count[2] + " of " + count[1] + " VANS STUCK");
+	}
+
+	/* Runs Simulate.runTrial on seeds from to to, with what t says (see
+	 * Simulate.Trial; null to run them the way Simulate does) and Van.assign's
+	 * printing kept out of the way. stats[seed - from] gets each trial's
+	 * statistics, if stats isn't null, and t's counts come back added up over
+	 * the trials. Returns how long the trials took, in nanoseconds. Every
+	 * benchmark that runs trials goes through here, so they all dispatch the
+	 * way Simulate does. */
+	private static long runTrials(Map m, Experiment e, long from, long to, Simulate.Trial t, double[][][] stats) {
+		if (t == null)
+			t = new Simulate.Trial();
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		long time = 0, ticks = 0, back = 0;
+		try {
+			for (long seed = from; seed <= to; seed++) {
+				// runTrial draws the first call before it seeds the generator
+				PassengerSample.initRandGen(seed);
+				long start = System.nanoTime();
+				double[][] s = Simulate.runTrial(m, e, seed, t);
+				time += System.nanoTime() - start;
+				ticks += t.ticksRun;
+				back += t.sentBack;
+				if (stats != null)
+					stats[(int) (seed - from)] = s;
+			}
+		} finally {
+			System.setOut(out);
+		}
+		t.ticksRun = ticks;
+		t.sentBack = back;
+		return time;
+	}
+
+	/* trials with picker picking the van for each call (see Simulate.Picker) */
+	private static Simulate.Trial picking(Simulate.Picker picker) {
+		Simulate.Trial t = new Simulate.Trial();
+		t.picker = picker;
+		return t;
+	}
+
+	/* the same, for benchmarks that want the average total and in-van times
+	 * of the treatment vans: returns {avg total, avg in-van, nanoseconds} */
+	private static double[] averages(Map m, Experiment e, int trials) {
+		double[][][] stats = new double[trials][][];
+		long time = runTrials(m, e, 1, trials, null, stats);
+		double att = 0, avt = 0;
+		for (double[][] s : stats) {
+			att += s[0][0];
+			avt += s[0][1];
+		}
+		return new double[] {att / trials, avt / trials, time};
+	}
+
+	/* the hpparam start corner is on hydepark; elsewhere start the vans in the middle of the map */
+	private static void startInMiddle(Map m, Experiment e, String file) {
+		if (file.equals("hydepark"))
+			return;
+		int start = (m.NUM_EW / 2) * m.NUM_NS + m.NUM_NS / 2;
+		while (!m.inLargestComponent(start))
+			start++;
+		e.startAddress = m.address(start);
+	}
+
+	/* Simulate.runTrial (with the experiment's vans if numVan is 0, else
+	 * numVan vans and five times the calls), asking every van for check()
+	 * and check1() on every call and comparing them with referenceCheck() and
+	 * referenceCheck1(). The cheapest check() gets the passenger. */
+	private static void check(String file, int trials, int numVan) {
+		Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		if (numVan > 0) {
+			// a bus on a busy night: calls come in five times as often
+			e.numVan = numVan;
+			e.arrRate *= 5;
+		}
+		final long[] time = new long[2];  // check+check1, and the old way
+		final long[] count = new long[4]; // checks, wrong, stops, longest
+		int window = Simulate.pickupWindow;
+		Simulate.pickupWindow = CHECK_WINDOW;
+		runTrials(m, e, 1, trials, picking(new Simulate.Picker() {
+			public int[] pick(Van[] vans, Passenger p, int t) {
+				int best = 0;
+				int cost = Integer.MAX_VALUE;
+				int[] pick = null;
+				for (int i = 0; i < vans.length; i++) {
+					Van v = vans[i];
+					long start = System.nanoTime();
+					int[] fast = v.check(p, t);
+					int[] fast1 = v.check1(p, t);
+					long mid = System.nanoTime();
+					int[] ref = referenceCheck(v, p, t);
+					int[] ref1 = referenceCheck1(v, p, t);
+					time[1] += System.nanoTime() - mid;
+					time[0] += mid - start;
+					if (!java.util.Arrays.equals(fast, ref) || !java.util.Arrays.equals(fast1, ref1))
+						count[1]++;
+					count[0]++;
+					int len = v.getSchedule().size();
+					count[2] += len;
+					count[3] = Math.max(count[3], len);
+					if (fast[0] < cost) {
+						cost = fast[0];
+						best = i;
+						pick = fast;
+					}
+				}
+				return (pick == null) ? null : new int[] {best, pick[1], pick[2]};
+			}
+		}), null);
+		Simulate.pickupWindow = window;
+		long checks = Math.max(1, count[0]);
+		System.out.printf("%-9s %2d vans | %7d checks, %5.1f stops avg, %3d max | check+check1: %7.2f us | old way: %8.2f us | %s\n",
+				file, e.numVan, count[0], count[2] / (double) checks, count[3],
+				time[0] / 1e3 / checks, time[1] / 1e3 / checks,
+				(count[1] == 0) ? "same decisions" : count[1] + " DECISIONS DIFFER");
+	}
+
+	/* Simulate.runTrial with numVan vans, putting each call through
+	 * Dispatcher.compare and through check() on every van. */
+	private static void dispatch(String file, int trials, int numVan) {
+		Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		e.numVan = numVan;
+		final Dispatcher d = new Dispatcher();
+		Dispatcher dispatcher = Simulate.dispatcher;
+		Simulate.dispatcher = d;
+		final long[] time = new long[2]; // compare, and every van
+		final int[] count = new int[2];  // calls, wrong
+		runTrials(m, e, 1, trials, picking(new Simulate.Picker() {
+			public int[] pick(Van[] vans, Passenger p, int t) {
+				long start = System.nanoTime();
+				int[] all = null;
+				int cost = Integer.MAX_VALUE;
+				for (int i = 0; i < vans.length; i++) {
+					int[] c = vans[i].check(p, t);
+					if (c[0] < cost) {
+						cost = c[0];
+						all = c;
+						all[0] = i;
+					}
+				}
+				long mid = System.nanoTime();
+				int[] pick = d.compare(vans, p, t);
+				time[0] += System.nanoTime() - mid;
+				time[1] += mid - start;
+				if (!java.util.Arrays.equals(pick, all))
+					count[1]++;
+				count[0]++;
+				return pick;
+			}
+		}), null);
+		Simulate.dispatcher = dispatcher;
+		int calls = Math.max(1, count[0]);
+		System.out.printf("%-9s %2d vans | %5d calls | %5.1f%% of checks skipped | compare: %6.2f us | every van: %6.2f us | %s\n",
+				file, numVan, count[0], 100.0 * d.getSkipped() / Math.max(1, d.getChecks() + d.getSkipped()),
+				time[0] / 1e3 / calls, time[1] / 1e3 / calls,
+				(count[1] == 0) ? "same picks" : count[1] + " PICKS DIFFER");
+	}
+
+	/* A Picker that passes each call on to Simulate.dispatcher, timing it
+	 * and noting down the picks (van, pickup and dropoff positions; -1 for none) */
+	private static class Timed implements Simulate.Picker {
+		final java.util.ArrayList<Integer> picks = new java.util.ArrayList<Integer>();
+		long time;
+		long checks; // Van.check calls compare made
+
+		public int[] pick(Van[] vans, Passenger p, int t) {
+			long checks0 = Simulate.dispatcher.getChecks();
+			long start = System.nanoTime();
+			int[] pick = Simulate.dispatcher.compare(vans, p, t);
+			time += System.nanoTime() - start;
+			checks += Simulate.dispatcher.getChecks() - checks0;
+			if (pick == null) {
+				picks.add(-1);
+				return null;
+			}
+			picks.add(pick[0]);
+			picks.add(pick[1]);
+			picks.add(pick[2]);
+			return pick;
+		}
+
+		int calls() {
+			int calls = 0;
+			for (int k = 0; k < picks.size(); k += (picks.get(k) < 0) ? 1 : 3)
+				calls++;
+			return calls;
+		}
+	}
+
+	/* Runs the same passenger streams with compare() on each no. of threads,
+	 * with no fleet too small for the threads. Seed 0 warms up the JIT. */
+	private static void parallel(String name, String file, int numVan, int[] threads) {
+		Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		e.numVan = numVan;
+		e.arrRate *= 20;
+		startInMiddle(m, e, file);
+		Dispatcher dispatcher = Simulate.dispatcher;
+		int indexThreshold = Simulate.indexThreshold;
+		// every van is bounded, on however many threads
+		Simulate.indexThreshold = Integer.MAX_VALUE;
+		java.util.ArrayList<Integer> first = null;
+		for (int t : threads) {
+			Dispatcher d = new Dispatcher();
+			d.setThreads(t);
+			d.setParallelThreshold(1);
+			Simulate.dispatcher = d;
+			runTrials(m, e, 0, 0, null, null);
+			Timed timed = new Timed();
+			runTrials(m, e, 1, 2, picking(timed), null);
+			d.shutdown();
+			if (first == null)
+				first = timed.picks;
+			int calls = Math.max(1, timed.calls());
+			System.out.printf("%-18s %4d vans, %2d threads | %5d calls | %5.1f%% of checks skipped | %8.1f us per call | %s\n",
+					name, numVan, t, timed.calls(), 100.0 * d.getSkipped() / Math.max(1, d.getChecks() + d.getSkipped()),
+					timed.time / 1e3 / calls, timed.picks.equals(first) ? "same picks" : "PICKS DIFFER");
+		}
+		Simulate.dispatcher = dispatcher;
+		Simulate.indexThreshold = indexThreshold;
+	}
+
+	/* Dispatches with a VanIndex (k nearest vans, or exact for k = 0), or
+	 * without one for k < 0, the vans starting all over the map. Each call
+	 * also goes to a dispatcher with no index (not timed), to see if the
+	 * pick was the cheapest. Seed 0 warms up the JIT. */
+	private static void nearest(String file, int numVan, int k, boolean byRoad) {
+		Map m = new Map(file);
+		final Experiment e = new Experiment("hpparam");
+		e.numVan = numVan;
+		e.arrRate *= 20;
+		Random rand = new Random(1);
+		Address[] vanStarts = new Address[numVan];
+		for (int i = 0; i < numVan; i++) {
+			int start;
+			do {
+				start = rand.nextInt(m.NUM_EW * m.NUM_NS);
+			} while (!m.inLargestComponent(start));
+			vanStarts[i] = m.address(start);
+		}
+		Dispatcher dispatcher = Simulate.dispatcher;
+		int indexThreshold = Simulate.indexThreshold;
+		Dispatcher d = new Dispatcher();
+		d.setNearest(Math.max(k, 0), byRoad);
+		Simulate.dispatcher = d;
+		Simulate.indexThreshold = (k >= 0) ? 0 : Integer.MAX_VALUE;
+		Simulate.Trial warmUp = new Simulate.Trial();
+		warmUp.vanStarts = vanStarts;
+		runTrials(m, e, 0, 0, warmUp, null);
+		final Dispatcher all = new Dispatcher();
+		final long[] extra = new long[1];
+		final int[] missed = new int[1];
+		Timed timed = new Timed() {
+			public int[] pick(Van[] vans, Passenger p, int t) {
+				int[] pick = super.pick(vans, p, t);
+				int[] best = all.compare(vans, p, t);
+				if (best != null && (pick == null || best[0] != pick[0] || best[1] != pick[1] || best[2] != pick[2])) {
+					missed[0]++;
+					// a van with room was missed altogether: that's not counted in extra
+					if (pick != null)
+						extra[0] += (long) vans[pick[0]].check(p, t)[0] - vans[best[0]].check(p, t)[0];
+				}
+				return pick;
+			}
+		};
+		Simulate.Trial trial = picking(timed);
+		trial.vanStarts = vanStarts;
+		runTrials(m, e, 1, 1, trial, null);
+		Simulate.dispatcher = dispatcher;
+		Simulate.indexThreshold = indexThreshold;
+		int calls = Math.max(1, timed.calls());
+		String mode = (k < 0) ? "every van" : (k == 0) ? "index, exact" : k + " nearest" + (byRoad ? " by road" : "");
+		System.out.printf("%4d vans | %-19s | %4d calls | %7.1f us per call | %6.1f checks per call | %s\n",
+				numVan, mode, timed.calls(), timed.time / 1e3 / calls, timed.checks / (double) calls,
+				(missed[0] == 0) ? "cheapest every time" : String.format("%d missed the cheapest, %.1f extra cost on average", missed[0], extra[0] / (double) missed[0]));
+	}
+
+	/* Simulate.runTrial with and without batchDispatch, on the experiment's
+	 * fleet if numVan is 0, else numVan vans and five times the calls. */
+	private static void batch(String file, int trials, int numVan) {
+		Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		if (numVan > 0) {
+			e.numVan = numVan;
+			e.arrRate *= 5;
+		}
+		for (boolean batch : new boolean[] {false, true}) {
+			Simulate.batchDispatch = batch;
+			// one trial to warm up
+			runTrials(m, e, 0, 0, null, null);
+			double[] avg = averages(m, e, trials);
+			System.out.printf("%-9s %2d vans | %-13s | avg total time %7.3f | avg in-van time %7.3f | %6.2f ms per trial\n",
+					file, e.numVan, batch ? "tick at a time" : "one at a time", avg[0], avg[1], avg[2] / 1e6 / trials);
+		}
+		Simulate.batchDispatch = false;
+	}
+
+	/* Simulate.runTrial with each ScheduleOptimizer budget (0 for none), as batch() does */
+	private static void optimize(String file, int trials, int numVan) {
+		Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		if (numVan > 0) {
+			e.numVan = numVan;
+			e.arrRate *= 5;
+		}
+		for (int budget : new int[] {0, 200, 1000}) {
+			ScheduleOptimizer opt = (budget > 0)
+					? new ScheduleOptimizer(m, Runtime.getRuntime().availableProcessors(), budget * 1000L) : null;
+			Simulate.optimizer = opt;
+			// one trial to warm up
+			runTrials(m, e, 0, 0, null, null);
+			double saved0 = (opt == null) ? 0 : opt.getSaved();
+			long cpu0 = (opt == null) ? 0 : opt.getCpuNanos();
+			int published0 = (opt == null) ? 0 : opt.getPublished();
+			double[] avg = averages(m, e, trials);
+			System.out.printf("%-9s %2d vans | %4d us/tick | avg total time %7.3f | avg in-van time %7.3f | %6.2f ms per trial",
+					file, e.numVan, budget, avg[0], avg[1], avg[2] / 1e6 / trials);
+			if (opt != null) {
+				System.out.printf(" | %5.1f reorders, cost down %8.1f, %6.2f ms CPU per trial (%d stale)",
+						(double) (opt.getPublished() - published0) / trials, (opt.getSaved() - saved0) / trials,
+						(opt.getCpuNanos() - cpu0) / 1e6 / trials, opt.getStale());
+				opt.shutdown();
+			}
+			System.out.println();
+		}
+		Simulate.optimizer = null;
+	}
+
+	/* Simulate.runTrial with a Reassigner round every period ticks (0 for none), as batch() does */
+	private static void reassign(String file, int trials, int numVan) {
+		Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		if (numVan > 0) {
+			e.numVan = numVan;
+			e.arrRate *= 5;
+		}
+		for (int period : new int[] {0, 5, 1}) {
+			Reassigner r = (period > 0)
+					? new Reassigner(m, Runtime.getRuntime().availableProcessors(), Simulate.reassignDeadline * 1000L) : null;
+			Simulate.reassigner = r;
+			Simulate.reassignPeriod = period;
+			// one trial to warm up
+			runTrials(m, e, 0, 0, null, null);
+			double saved0 = (r == null) ? 0 : r.getSaved();
+			int moved0 = (r == null) ? 0 : r.getMoved();
+			double[] avg = averages(m, e, trials);
+			System.out.printf("%-9s %2d vans | %-13s | avg total time %7.3f | avg in-van time %7.3f | %6.2f ms per trial",
+					file, e.numVan, (period == 0) ? "no rounds" : "every " + period + " tick" + ((period > 1) ? "s" : ""),
+					avg[0], avg[1], avg[2] / 1e6 / trials);
+			if (r != null) {
+				System.out.printf(" | %5.2f moved, cost down %7.1f per trial (%d clusters late)",
+						(double) (r.getMoved() - moved0) / trials, (r.getSaved() - saved0) / trials, r.getLate());
+				r.shutdown();
+			}
+			System.out.println();
+		}
+		Simulate.reassigner = null;
+		Simulate.reassignPeriod = 0;
+	}
+
+	/* Simulate.runTrial a tick at a time and event driven, on the same seeds;
+	 * a night is a hundred times as long with a tenth of the calls per tick. */
+	private static void events(String file, int trials, boolean night) {
+		Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		if (night) {
+			e.endTime *= 100;
+			e.arrRate /= 10;
+		}
+		double[][][] tickStats = new double[trials][][];
+		double[][][] eventStats = new double[trials][][];
+		for (boolean eventDriven : new boolean[] {false, true}) {
+			Simulate.eventDriven = eventDriven;
+			// one trial to warm up
+			runTrials(m, e, 0, 0, null, null);
+			Simulate.Trial trial = new Simulate.Trial();
+			long time = runTrials(m, e, 1, trials, trial, eventDriven ? eventStats : tickStats);
+			long ticks = trial.ticksRun;
+			System.out.printf("%-9s %-5s %6d ticks | %-12s | %8.3f ms per trial | %8.1f ticks run per trial",
+					file, night ? "night" : "shift", e.endTime, eventDriven ? "event driven" : "tick by tick",
+					time / 1e6 / trials, (double) ticks / trials);
+			if (eventDriven)
+				System.out.printf(" | results %s", java.util.Arrays.deepEquals(tickStats, eventStats) ? "all match" : "DIFFER");
+			System.out.println();
+		}
+		Simulate.eventDriven = true;
+	}
+
+	/* Counts the map queries (Map.getQueries) Simulate.runTrial makes
+	 * outside of dispatch, that is assigning passengers and driving to their
+	 * stops, routing afresh at every stop and keeping the legs between stops.
+	 * Seed 0 warms up the JIT and isn't counted. */
+	private static void legs(String name, String file, int trials) {
+		final Map m = new Map(file);
+		Experiment e = new Experiment("hpparam");
+		e.numVan = 16;
+		e.arrRate *= 5;
+		startInMiddle(m, e, file);
+		java.util.ArrayList<Integer> first = null;
+		for (boolean keepLegs : new boolean[] {false, true}) {
+			Simulate.Trial warmUp = new Simulate.Trial();
+			warmUp.keepLegs = keepLegs;
+			runTrials(m, e, 0, 0, warmUp, null);
+			final long[] inDispatch = new long[1];
+			Timed timed = new Timed() {
+				public int[] pick(Van[] vans, Passenger p, int t) {
+					long q = m.getQueries();
+					int[] pick = super.pick(vans, p, t);
+					inDispatch[0] += m.getQueries() - q;
+					return pick;
+				}
+			};
+			long queries = m.getQueries();
+			long expanded = m.getExpanded();
+			Simulate.Trial trial = picking(timed);
+			trial.keepLegs = keepLegs;
+			long time = runTrials(m, e, 1, trials, trial, null);
+			queries = m.getQueries() - queries - inDispatch[0];
+			expanded = m.getExpanded() - expanded;
+			if (first == null)
+				first = timed.picks;
+			System.out.printf("%-18s | %-16s | %7.1f queries per trial outside dispatch, %5.2f per call | %9.0f nodes expanded | %7.2f ms per trial | %s\n",
+					name, keepLegs ? "legs kept" : "route every stop", (double) queries / trials,
+					(double) queries / Math.max(1, timed.calls()), (double) expanded / trials, time / 1e6 / trials,
+					timed.picks.equals(first) ? "same picks" : "picks differ");
+		}
+	}
+
+	/* Van.check() as it was: for each pickup position i and dropoff position
+	 * j, sums the weights below them afresh and asks the map for each distance. */
+	private static int[] referenceCheck(Van v, Passenger student, int currentTime) {
+		Map m = v.m;
+		Schedule s = v.getSchedule();
+		int pickUp = m.id(student.pickUp);
+		int dropOff = m.id(student.dropOff);
+		int[] rv = new int[3];
+		if (s.isEmpty()) {
+			rv[0] = m.distance(v.here, pickUp);
+			if (rv[0] == Map.UNREACHABLE || !m.canReach(pickUp, dropOff))
+				rv[0] = Integer.MAX_VALUE;
+			rv[1] = 0;
+			rv[2] = 1;
+			return rv;
+		}
+		int len = s.size();
+		int bestp = -1, bestd = -1;
+		int cost = Integer.MAX_VALUE;
+		for (int i = 0; i <= len; i++) {
+			int above = (i == 0) ? v.here : s.node(i - 1);
+			int toPick = m.distance(above, pickUp);
+			int fromPick = (i < len) ? m.distance(pickUp, s.node(i)) : 0;
+			if (toPick == Map.UNREACHABLE || fromPick == Map.UNREACHABLE)
+				continue;
+			int extradistP = (i == len) ? toPick : toPick + fromPick - m.distance(above, s.node(i));
+			int weightsumP = 1;
+			for (int k = i; k < len; k++)
+				weightsumP += s.passenger(k).weight(currentTime);
+			int pcost = weightsumP * extradistP;
+			int dcost = Integer.MAX_VALUE;
+			int bestpd = -1;
+			for (int j = i + 1; j <= len + 1; j++) {
+				int aboveD = (j == i + 1) ? pickUp : s.node(j - 2);
+				int toDrop = m.distance(aboveD, dropOff);
+				int fromDrop = (j <= len) ? m.distance(dropOff, s.node(j - 1)) : 0;
+				if (toDrop == Map.UNREACHABLE || fromDrop == Map.UNREACHABLE || !fits(v, i, j)
+						|| !inTime(v, student, i, j, currentTime))
+					continue;
+				int extradistD = (j == len + 1) ? toDrop : toDrop + fromDrop - m.distance(aboveD, s.node(j - 1));
+				int weightsumD = 1;
+				for (int k = j; k < len + 1; k++)
+					weightsumD += s.passenger(k - 1).weight(currentTime);
+				if (weightsumD * extradistD < dcost) {
+					dcost = extradistD * weightsumD;
+					bestpd = j;
+				}
+			}
+			if (bestpd < 0)
+				continue;
+			if (pcost + dcost < cost) {
+				cost = pcost + dcost;
+				bestp = i;
+				bestd = bestpd;
+			}
+		}
+		rv[0] = (bestp < 0) ? Integer.MAX_VALUE : cost * (1 + len / 10);
+		rv[1] = bestp;
+		rv[2] = bestd;
+		return rv;
+	}
+
+	/* whether the van has a seat for a passenger picked up at i and dropped
+	 * off at j, counting who's on board along the new schedule one event at
+	 * a time (referenceCheck's way of working out what Van.check's load
+	 * profile says) */
+	private static boolean fits(Van v, int i, int j) {
+		Schedule s = v.getSchedule();
+		int len = s.size();
+		int n = 0;
+		for (int k = 0; k < len; k++) {
+			if (!s.isPickup(k) && s.find(s.pid(k), true) < 0)
+				n++;
+		}
+		for (int k = 0; k < j; k++) {
+			if (k == i)
+				n++;
+			else
+				n += s.isPickup(k - ((k > i) ? 1 : 0)) ? 1 : -1;
+			if (k >= i && n > v.capacity)
+				return false;
+		}
+		return true;
+	}
+
+	/* fits() for check1, which puts the pickup and the dropoff in front of
+	 * events i and j of the schedule as it is (j >= i): the passenger takes a
+	 * seat before event i and keeps it through event j-1 */
+	private static boolean fits1(Van v, int i, int j) {
+		Schedule s = v.getSchedule();
+		int len = s.size();
+		int n = 0;
+		for (int k = 0; k < len; k++) {
+			if (!s.isPickup(k) && s.find(s.pid(k), true) < 0)
+				n++;
+		}
+		for (int k = 0; k < i; k++)
+			n += s.isPickup(k) ? 1 : -1;
+		if (++n > v.capacity)
+			return false;
+		for (int k = i; k < j; k++) {
+			n += s.isPickup(k) ? 1 : -1;
+			if (n > v.capacity)
+				return false;
+		}
+		return true;
+	}
+
+	/* whether a pickup at i and dropoff at j keep to Benchmark check's time
+	 * limits, driving the old and the new schedule leg by leg and comparing
+	 * when each event is got to. A pickup can't come later than its pickupBy,
+	 * nor a dropoff of someone on board after their maxRide is up, unless it
+	 * was already going to (then not any later than that). Someone not yet
+	 * picked up can't ride longer than maxRide, or than they were going to;
+	 * and the new passenger's ride is no longer than Simulate.timeCap, or the
+	 * direct ride if that's longer. */
+	private static boolean inTime(Van v, Passenger student, int i, int j, int currentTime) {
+		Map m = v.m;
+		Schedule s = v.getSchedule();
+		int len = s.size();
+		int pickUp = m.id(student.pickUp);
+		int dropOff = m.id(student.dropOff);
+		int[] old = new int[len];
+		for (int k = 0; k < len; k++)
+			old[k] = ((k == 0) ? v.firstLeg() : old[k - 1] + s.distToNext(k - 1));
+		// the new schedule: event k of it is old event k - (new events above it), or a new one
+		int[] now = new int[len];
+		int driven = 0, at = v.here, pickedUp = 0;
+		for (int k = 0; k <= len + 1; k++) {
+			int e = k - ((k > i) ? 1 : 0) - ((k > j) ? 1 : 0);
+			int node = (k == i) ? pickUp : (k == j) ? dropOff : s.node(e);
+			driven += (k == 0 && i > 0) ? v.firstLeg() : m.distance(at, node);
+			at = node;
+			if (k == i)
+				pickedUp = driven;
+			else if (k == j) {
+				if (driven - pickedUp > Math.max(Simulate.timeCap, m.distance(pickUp, dropOff)))
+					return false;
+			} else
+				now[e] = driven;
+		}
+		for (int e = 0; e < len; e++) {
+			Passenger p = s.passenger(e);
+			int pick = s.isPickup(e) ? -1 : s.find(p.id, true);
+			if (pick >= 0) {
+				if (p.maxRide != Integer.MAX_VALUE && now[e] - now[pick] > Math.max(p.maxRide, old[e] - old[pick]))
+					return false;
+				continue;
+			}
+			long by = s.isPickup(e) ? p.pickupBy
+					: (p.maxRide == Integer.MAX_VALUE) ? Integer.MAX_VALUE : (long) p.pickUpTime + p.maxRide;
+			if (by < Integer.MAX_VALUE && currentTime + now[e] > Math.max(by, currentTime + old[e]))
+				return false;
+		}
+		return true;
+	}
+
+	/* Van.check1() as it was (see referenceCheck) */
+	private static int[] referenceCheck1(Van v, Passenger student, int currentTime) {
+		Map m = v.m;
+		Schedule s = v.getSchedule();
+		int pickUp = m.id(student.pickUp);
+		int dropOff = m.id(student.dropOff);
+		int[] rv = new int[3];
+		if (s.isEmpty()) {
+			rv[0] = m.distance(v.here, pickUp);
+			if (rv[0] == Map.UNREACHABLE || !m.canReach(pickUp, dropOff))
+				rv[0] = Integer.MAX_VALUE;
+			return rv;
+		}
+		int len = s.size();
+		int bestp = -1, bestd = -1;
+		int pcost = Integer.MAX_VALUE, dcost = Integer.MAX_VALUE;
+		for (int i = 0; i <= len; i++) {
+			if (!fits1(v, i, i))
+				continue;
+			int above = (i == 0) ? v.here : s.node(i - 1);
+			int to = m.distance(above, pickUp);
+			int from = (i < len) ? m.distance(pickUp, s.node(i)) : 0;
+			if (to == Map.UNREACHABLE || from == Map.UNREACHABLE)
+				continue;
+			int extradist = (i == len) ? to : to + from - m.distance(above, s.node(i));
+			int weightsum = 1;
+			for (int k = i; k < len; k++)
+				weightsum += s.passenger(k).weight(currentTime);
+			if (extradist * weightsum < pcost) {
+				pcost = extradist * weightsum;
+				bestp = i;
+			}
+		}
+		for (int j = Math.max(bestp, 0); j <= len && bestp >= 0; j++) {
+			int above = (j == 0) ? v.here : s.node(j - 1);
+			int to = m.distance(above, dropOff);
+			int from = (j < len) ? m.distance(dropOff, s.node(j)) : 0;
+			if (to == Map.UNREACHABLE || from == Map.UNREACHABLE || !fits1(v, bestp, j))
+				continue;
+			int extradist = (j == len) ? to : to + from - m.distance(above, s.node(j));
+			int weightsum = 1;
+			for (int k = j; k < len; k++)
+				weightsum += s.passenger(k).weight(currentTime);
+			if (extradist * weightsum < dcost) {
+				dcost = extradist * weightsum;
+				bestd = j;
+			}
+		}
+		rv[0] = (bestd < 0) ? Integer.MAX_VALUE : pcost + dcost;
+		rv[1] = bestp;
+		rv[2] = bestd;
+		return rv;
+	}
+
+	/* returns {sum of distances, nodes expanded, nanoseconds} */
+	private static long[] runQueries(Map m, int[] from, int[] to, int q) {
+		long expanded = m.getExpanded();
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < q; i++)
+			sum += m.searchDistance(from[i], to[i]);
+		long time = System.nanoTime() - start;
+		long[] rv = {sum, m.getExpanded() - expanded, time};
+		return rv;
+	}
+
+	/* writes a synthetic map to a temp file and returns its name */
+	static String syntheticMap(int height, int width, long seed) {
+		try {
+			File f = File.createTempFile("synthetic" + height + "x" + width + "-", ".map");
+			f.deleteOnExit();
+			writeSyntheticMap(f.getPath(), height, width, seed);
+			return f.getPath();
+		} catch (IOException ex) {
+			throw new RuntimeException("Benchmark: can't write synthetic map", ex);
+		}
+	}
+
+	/* Synthetic city grid: about half the streets are one-way (picked at random),
+	 * about 2% of the cells are closed blocks you can't drive out of, and there
+	 * are a few big closed areas (parks, campuses, rail yards) to drive around. */
+	static void writeSyntheticMap(String file, int height, int width, long seed) throws IOException {
+		Random rand = new Random(seed);
+		// 0 = two-way, 1 = only east (or south), 2 = only west (or north)
+		int[] ewWay = new int[height];
+		int[] nsWay = new int[width];
+		for (int i = 0; i < height; i++)
+			ewWay[i] = (rand.nextInt(2) == 0) ? 0 : 1 + rand.nextInt(2);
+		for (int j = 0; j < width; j++)
+			nsWay[j] = (rand.nextInt(2) == 0) ? 0 : 1 + rand.nextInt(2);
+		boolean[][] closed = new boolean[height][width];
+		for (int r = 0; r < (height * width) / 5000; r++) {
+			int h = 1 + rand.nextInt(Math.max(1, height / 8));
+			int w = 1 + rand.nextInt(Math.max(1, width / 8));
+			int top = rand.nextInt(height);
+			int left = rand.nextInt(width);
+			for (int i = top; i < Math.min(height, top + h); i++)
+				for (int j = left; j < Math.min(width, left + w); j++)
+					closed[i][j] = true;
+		}
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		out.println(height);
+		out.println(width);
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < height; i++)
+			names.append((i > 0) ? "," : "").append("E").append(i);
+		out.println(names);
+		names = new StringBuilder();
+		for (int j = 0; j < width; j++)
+			names.append((j > 0) ? "," : "").append("N").append(j);
+		out.println(names);
+		for (int i = 0; i < height; i++) {
+			out.println("E" + i);
+			for (int j = 0; j < width; j++) {
+				if (closed[i][j] || rand.nextInt(50) == 0) {
+					out.println("0,0,0,0");
+					continue;
+				}
+				int n = (i > 0 && nsWay[j] != 1) ? 1 : 0;
+				int s = (i < height-1 && nsWay[j] != 2) ? 1 : 0;
+				int e = (j < width-1 && ewWay[i] != 2) ? 1 : 0;
+				int w = (j > 0 && ewWay[i] != 1) ? 1 : 0;
+				out.println(n + "," + s + "," + e + "," + w);
+			}
+		}
+		out.close();
+	}
+}
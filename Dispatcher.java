@@ -0,0 +1,402 @@
+/*
+ * tclo, melissatan
+ *
+ * Picks the van for each new passenger, for both Operator and Simulate.
+ *
+ * compare() doesn't run the full Van.check on every van. It first asks each
+ * van for a cheap lower bound on what check would say (Van.lowerBound), then
+ * checks the vans in order of bound, and stops once the next bound is more
+ * than the best cost found so far: none of the vans left can beat it. Ties
+ * go to the lowest numbered van, same as checking every van in turn, so the
+ * answer is the same as the exhaustive one.
+ *
+ * With setThreads(k) for k > 1, fleets of at least getParallelThreshold()
+ * vans are checked on k threads: each takes the next van in bound order,
+ * and they share the best (cost, van) so far, so the pruning still works.
+ * The cheapest van, lowest number on ties, wins whichever thread found it,
+ * so the answer doesn't depend on the threads.
+ *
+ * Given a VanIndex (setIndex), compare() doesn't even bound every van. In
+ * exact mode it takes the busy vans, then idle vans ring by ring out from
+ * the pickup until no idle van further out can beat the best so far. The
+ * answer is still the exhaustive one. In nearest mode (setNearest(k, ..))
+ * it only looks at the k vans nearest the pickup, which is quicker but can
+ * miss a busy van passing close by.
+ *
+ * dispatchBatch() places everyone who called in the same tick together:
+ * Van.check for every passenger and van, then the cheapest way to give each
+ * passenger a different van (Hungarian method), then compare() one at a
+ * time for whoever is left over.
+ *
+ * Methods:
+ *
+ * - compare(Van[] vans, Passenger p, int currentTime) --> returns int[3] with cheapest van and
+ * 										  insertion indices for pickup and dropoff, or null if no van can take p
+ * - simpleCompare(Van[] vans, Passenger p, int currentTime) --> returns int[2] with cheapest van and
+ * 										  insertion index for pickup
+ * - getChecks(), getSkipped() --> no. of Van.check calls made, and skipped, by compare so far
+ * - setThreads(int threads) --> no. of threads compare may use (1, the default, for none)
+ * - setParallelThreshold(int vans) --> smallest fleet compare spreads over the threads
+ * - shutdown() --> stops the worker threads
+ * - setIndex(VanIndex index) --> where the vans are (van i of the array is van i of the index), or null
+ * - setNearest(int k, boolean byRoad) --> only check the k nearest vans (by Mdist, or by road); 0 for exact
+ * - dispatchBatch(Van[] vans, Passenger[] batch, int currentTime) --> assigns batch to vans, returns who's left over
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Dispatcher {
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 64;
+	public static final int MAX_BATCH = 32; // passengers matched together; any more go one at a time
+
+	private long checks, skipped;
+	private int threads = 1;
+	private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	private ExecutorService pool; // threads - 1 workers; the calling thread is the other one
+	private VanIndex index;
+	private int nearest;   // 0: exact
+	private boolean byRoad;
+
+	private static final long NONE = Long.MAX_VALUE; // no best van yet
+	private static final long NO_WAY = 1L << 40;     // matching cost of a van that can't take a passenger
+
+	public Dispatcher() {
+
+	}
+
+	/* Returns the cheapest van and its recommended insertion indices for
+	 * pickup and dropoff, or null if no van can take the passenger (none has
+	 * room, or none can get there). */
+	public int[] compare(Van[] vans, Passenger p, int currentTime) {
+		long before = checks;
+		int[][] pick = new int[1][];
+		long best;
+		if (index == null) {
+			int[] all = new int[vans.length];
+			for (int i = 0; i < all.length; i++)
+				all[i] = i;
+			best = checkVans(vans, all, p, currentTime, NONE, pick);
+		} else if (nearest > 0) {
+			int[] near = index.nearest(vans[0].m.id(p.pickUp), nearest, byRoad);
+			best = checkVans(vans, near, p, currentTime, NONE, pick);
+		} else
+			best = exactCompare(vans, p, currentTime, pick);
+		skipped += vans.length - (checks - before);
+		if (best == NONE)
+			return null;
+		int[] rv = pick[0];
+		rv[0] = (int) best;
+		return rv;
+	}
+
+	/* With an index: the busy vans and the idle ones are checked in one
+	 * lowerBound order, as in checkVans, but idle vans are only bounded a
+	 * ring at a time. An idle van is no nearer than its ring's distance, so a
+	 * ring is added just before the first van bounded further off than that;
+	 * and once the next van's bound is over the best cost, so is every van
+	 * in the rings not added yet. */
+	private long exactCompare(Van[] vans, Passenger p, int currentTime, int[][] pick) {
+		int from = vans[0].m.id(p.pickUp);
+		PriorityQueue<Long> order = new PriorityQueue<Long>();
+		for (int i : index.busyVans())
+			order.add(((long) vans[i].lowerBound(p, currentTime) << 32) | i);
+		int rings = index.numRings(from);
+		int r = 0;
+		long best = NONE;
+		while (true) {
+			while (r < rings && (order.isEmpty() || ((long) index.ringDistance(r) << 32) <= order.peek())) {
+				for (int i : index.ring(from, r, true))
+					order.add(((long) vans[i].lowerBound(p, currentTime) << 32) | i);
+				r++;
+			}
+			if (order.isEmpty() || order.peek() > best)
+				break;
+			int i = (int) (long) order.poll();
+			int[] checkvans = vans[i].check(p, currentTime);
+			checks++;
+			if (checkvans[0] == Integer.MAX_VALUE)
+				continue;
+			long mine = ((long) checkvans[0] << 32) | i;
+			if (mine < best) {
+				best = mine;
+				pick[0] = checkvans;
+			}
+		}
+		return best;
+	}
+
+	/* Checks the vans numbered in ids, in order of lowerBound, and stops once
+	 * the next bound is more than the best cost so far: none of the vans left
+	 * can beat it. best is (cost << 32 | van), NONE for no van yet, so the
+	 * smaller one is the cheaper van, lower number on ties. Returns the new
+	 * best; pick[0] gets the winning van's check(), if it's one of these. */
+	private long checkVans(Van[] vans, int[] ids, Passenger p, int currentTime, long best, int[][] pick) {
+		int n = ids.length;
+		// bound in the high half, van number in the low: sorts by bound, then van
+		long[] order = new long[n];
+		for (int k = 0; k < n; k++)
+			order[k] = ((long) vans[ids[k]].lowerBound(p, currentTime) << 32) | ids[k];
+		Arrays.sort(order);
+		if (threads > 1 && n >= parallelThreshold)
+			return parallelCheckVans(vans, order, p, currentTime, best, pick);
+
+		for (int k = 0; k < n; k++) {
+			// the vans after this one can't do better than its bound, or tie from a lower number
+			if (order[k] > best)
+				break;
+			int i = (int) order[k];
+			int[] checkvans = vans[i].check(p, currentTime);
+			checks++;
+			if (checkvans[0] == Integer.MAX_VALUE)
+				continue;
+			long mine = ((long) checkvans[0] << 32) | i;
+			if (mine < best) {
+				best = mine;
+				pick[0] = checkvans;
+			}
+		}
+		return best;
+	}
+
+	/* checkVans() on threads: each one takes the next van in order, skips it
+	 * if its bound can't beat the best so far, else checks it and lowers the
+	 * best if it can. */
+	private long parallelCheckVans(final Van[] vans, final long[] order, final Passenger p, final int currentTime,
+			long best, int[][] pick) {
+		final int n = order.length;
+		final int[][] results = new int[n][];
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicLong shared = new AtomicLong(best);
+		class Worker implements Callable<Integer> {
+			public Integer call() {
+				int done = 0;
+				int k;
+				while ((k = next.getAndIncrement()) < n) {
+					if (order[k] > shared.get())
+						continue;
+					int i = (int) order[k];
+					int[] checkvans = vans[i].check(p, currentTime);
+					results[k] = checkvans;
+					done++;
+					if (checkvans[0] == Integer.MAX_VALUE)
+						continue;
+					long mine = ((long) checkvans[0] << 32) | i;
+					long b;
+					while (mine < (b = shared.get()) && !shared.compareAndSet(b, mine))
+						;
+				}
+				return done;
+			}
+		}
+		Worker job = new Worker();
+		ArrayList<Future<Integer>> jobs = new ArrayList<Future<Integer>>();
+		for (int t = 1; t < threads; t++)
+			jobs.add(pool.submit(job));
+		int done;
+		try {
+			done = job.call();
+			for (Future<Integer> f : jobs)
+				done += f.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Dispatcher: interrupted while checking vans", ex);
+		} catch (ExecutionException ex) {
+			throw new RuntimeException("Dispatcher: checking vans failed", ex.getCause());
+		}
+		checks += done;
+
+		if (shared.get() != best) {
+			best = shared.get();
+			for (int k = 0; k < n; k++) {
+				if ((int) order[k] == (int) best)
+					pick[0] = results[k];
+			}
+		}
+		return best;
+	}
+
+	/* Assigns every passenger in batch (all calling at currentTime) to a van,
+	 * and updates the vans' routes. The first MAX_BATCH of them (no more than
+	 * there are vans) get a van each, picked so the check() costs add up to as
+	 * little as possible. Each van takes at most one of them, so the insertion
+	 * positions check() gave still hold. The rest, and any the matching left
+	 * with a van that can't take them, then go through compare() in turn.
+	 * Returns the passengers no van could take. */
+	public Passenger[] dispatchBatch(Van[] vans, Passenger[] batch, int currentTime) {
+		int np = Math.min(batch.length, Math.min(MAX_BATCH, vans.length));
+		boolean[] placed = new boolean[batch.length];
+		if (np > 1) {
+			long[][] cost = new long[np][vans.length];
+			int[][][] checked = new int[np][vans.length][];
+			for (int p = 0; p < np; p++) {
+				for (int v = 0; v < vans.length; v++) {
+					checked[p][v] = vans[v].check(batch[p], currentTime);
+					checks++;
+					cost[p][v] = (checked[p][v][0] == Integer.MAX_VALUE) ? NO_WAY : checked[p][v][0];
+				}
+			}
+			int[] vanOf = hungarian(cost);
+			for (int p = 0; p < np; p++) {
+				int v = vanOf[p];
+				if (cost[p][v] == NO_WAY)
+					continue;
+				vans[v].assign(batch[p], checked[p][v][1], checked[p][v][2]);
+				vans[v].updateRoute();
+				placed[p] = true;
+			}
+		}
+		ArrayList<Passenger> left = new ArrayList<Passenger>();
+		for (int p = 0; p < batch.length; p++) {
+			if (placed[p])
+				continue;
+			int[] pick = compare(vans, batch[p], currentTime);
+			if (pick == null) {
+				left.add(batch[p]);
+				continue;
+			}
+			vans[pick[0]].assign(batch[p], pick[1], pick[2]);
+			vans[pick[0]].updateRoute();
+		}
+		return left.toArray(new Passenger[left.size()]);
+	}
+
+	/* Hungarian method, for a cost matrix with no more rows than columns:
+	 * returns the column for each row, no two rows the same, with the least
+	 * total cost. O(rows^2 columns). */
+	static int[] hungarian(long[][] a) {
+		int n = a.length, m = a[0].length;
+		// 1-based; row 0 and column 0 are for bookkeeping
+		long[] u = new long[n + 1], v = new long[m + 1];
+		int[] rowOf = new int[m + 1], way = new int[m + 1];
+		long[] minv = new long[m + 1];
+		boolean[] used = new boolean[m + 1];
+		for (int i = 1; i <= n; i++) {
+			rowOf[0] = i;
+			int j0 = 0;
+			Arrays.fill(minv, Long.MAX_VALUE);
+			Arrays.fill(used, false);
+			do {
+				// grow the tree of tight edges from row i until it reaches a free column
+				used[j0] = true;
+				int i0 = rowOf[j0], j1 = 0;
+				long delta = Long.MAX_VALUE;
+				for (int j = 1; j <= m; j++) {
+					if (used[j])
+						continue;
+					long cur = a[i0 - 1][j - 1] - u[i0] - v[j];
+					if (cur < minv[j]) {
+						minv[j] = cur;
+						way[j] = j0;
+					}
+					if (minv[j] < delta) {
+						delta = minv[j];
+						j1 = j;
+					}
+				}
+				for (int j = 0; j <= m; j++) {
+					if (used[j]) {
+						u[rowOf[j]] += delta;
+						v[j] -= delta;
+					} else
+						minv[j] -= delta;
+				}
+				j0 = j1;
+			} while (rowOf[j0] != 0);
+			// flip the path back to row i
+			do {
+				int j1 = way[j0];
+				rowOf[j0] = rowOf[j1];
+				j0 = j1;
+			} while (j0 != 0);
+		}
+		int[] rv = new int[n];
+		for (int j = 1; j <= m; j++) {
+			if (rowOf[j] != 0)
+				rv[rowOf[j] - 1] = j - 1;
+		}
+		return rv;
+	}
+
+	/* Simple version : Returns the cheapest van and recommended
+	 * pickup insertion index. */
+	public int[] simpleCompare(Van[] vans, Passenger p, int currentTime) {
+		int[] rv = new int[2];
+		int cost = Integer.MAX_VALUE;
+		int[] checkvans = new int[2];
+		for (int i=0;i<vans.length;i++) {
+			checkvans = vans[i].simpleCheck(p, currentTime);
+			if (checkvans[0] < cost) {
+				cost = checkvans[0];
+				rv = checkvans;
+				rv[0] = i;
+			}
+		}
+		return rv;
+	}
+
+	/* Uses up to threads threads (counting the caller) for fleets of at least
+	 * the parallel threshold. */
+	public synchronized void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Dispatcher: need at least 1 thread, not " + threads);
+		shutdown();
+		this.threads = threads;
+		if (threads > 1) {
+			pool = Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					// don't keep the simulation running once main is done
+					Thread t = new Thread(r, "dispatcher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setParallelThreshold(int vans) {
+		parallelThreshold = vans;
+	}
+
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	public synchronized void shutdown() {
+		if (pool != null)
+			pool.shutdown();
+		pool = null;
+		threads = 1;
+	}
+
+	public void setIndex(VanIndex index) {
+		this.index = index;
+	}
+
+	public void setNearest(int k, boolean byRoad) {
+		this.nearest = k;
+		this.byRoad = byRoad;
+	}
+
+	public long getChecks() {
+		return checks;
+	}
+
+	public long getSkipped() {
+		return skipped;
+	}
+
+	public String toString() {
+		long total = checks + skipped;
+		return String.format("Dispatcher: %d of %d Van.check calls skipped (%.1f%%)",
+				skipped, total, (total == 0) ? 0.0 : 100.0 * skipped / total);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * tclo, melissatan
+ * 
+ * Binary min-heap over int ids 0..capacity-1, keyed by int priorities,
+ * with decrease-key. Used as the open list in Map.path.
+ * 
+ * The heap is meant to be reused across queries: clear() just bumps a
+ * generation number, so an id only counts as being in the heap if it 
+ * was added since the last clear().
+ * 
+ */
+
+public class IndexedHeap {
+	private int[] heap;  // heap[k] = id sitting in slot k
+	private int[] pos;   // pos[id] = slot of id, or -1 once it's been polled
+	private int[] key;   // key[id] = priority of id
+	private int[] stamp; // stamp[id] = generation in which id was added
+	private int size, gen;
+	
+	public IndexedHeap(int capacity) {
+		heap = new int[capacity];
+		pos = new int[capacity];
+		key = new int[capacity];
+		stamp = new int[capacity];
+		size = 0;
+		gen = 1;
+	}
+	
+	/* empties the heap in O(1) */
+	public void clear() {
+		size = 0;
+		if (gen == Integer.MAX_VALUE) {
+			// generation wrapped around, so old stamps could look current again
+			java.util.Arrays.fill(stamp, 0);
+			gen = 0;
+		}
+		gen++;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/* true if id was added since the last clear() and hasn't been polled */
+	public boolean contains(int id) {
+		return stamp[id] == gen && pos[id] >= 0;
+	}
+	
+	/* priority id was added with (or decreased to) */
+	public int key(int id) {
+		return key[id];
+	}
+	
+	/* adds id, which must not have been added since the last clear() */
+	public void add(int id, int k) {
+		stamp[id] = gen;
+		key[id] = k;
+		heap[size] = id;
+		pos[id] = size;
+		size++;
+		siftUp(size - 1);
+	}
+	
+	/* lowers the priority of an id that is in the heap */
+	public void decreaseKey(int id, int k) {
+		key[id] = k;
+		siftUp(pos[id]);
+	}
+	
+	/* removes and returns the id with the smallest key */
+	public int poll() {
+		int top = heap[0];
+		pos[top] = -1;
+		size--;
+		if (size > 0) {
+			heap[0] = heap[size];
+			pos[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+	
+	private void siftUp(int k) {
+		int id = heap[k];
+		while (k > 0) {
+			int parent = (k - 1) / 2;
+			if (key[heap[parent]] <= key[id])
+				break;
+			heap[k] = heap[parent];
+			pos[heap[k]] = k;
+			k = parent;
+		}
+		heap[k] = id;
+		pos[id] = k;
+	}
+	
+	private void siftDown(int k) {
+		int id = heap[k];
+		while (true) {
+			int child = 2 * k + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && key[heap[child + 1]] < key[heap[child]])
+				child++;
+			if (key[heap[child]] >= key[id])
+				break;
+			heap[k] = heap[child];
+			pos[heap[k]] = k;
+			k = child;
+		}
+		heap[k] = id;
+		pos[id] = k;
+	}
+}
@@ -5,8 +5,14 @@
  * ------------------------
  * 
  * int Mdist(Address from, Address to) --> computes Manhattan distance between from and to * 
- * int distance(Address from, Address to) --> gets shortest distance between from and to, from path()
- * Address[] route(Address from, Address to) --> gets shortest route between from and to, from path()
+ * int distance(Address from, Address to) --> gets shortest distance between from and to, from the 
+ * 											  distance table, or a cached distance row on maps too big 
+ * 											  for a table (or path() if neither knows)
+ * Address[] route(Address from, Address to) --> gets shortest route between from and to, walked 
+ * 												 down the distance table or row (or from path())
+ * Route route(int from, int to) --> the same route, packed as a start node and 2 bits per step
+ * int[] distances(int source, int[] targets) --> distances from one node to many, from one search
+ * int[] distancesTo(int[] sources, int target) --> distances from many nodes to one, from one search
  * 
  * GenDraw mkMapCanvas(int scale) --> makes the image to be drawn on.
  * void drawMap(GenDraw im) --> draws map on im. 
@@ -14,142 +20,689 @@
  * void drawPassengers(Van, im) --> draws passengers in van, on im.
  * 
  * bool isReachable(Address) --> checks if address is reachable.
+ * bool canReach(Address from, Address to) --> checks if there is any way from one address to the other,
+ * 											   without searching (see findComponents)
+ * bool inLargestComponent(int id) --> checks if a node is in the biggest part of the map where every
+ * 									  node can get to every other
  * int[] findCoords(Address) --> gets array coords of address.
+ * 
+ * int id(Address) --> gets the node id of an address (resolved once per map, then cached in the Address).
+ * Address address(int id) --> makes an Address (with its id already set) for a node id.
+ * Mdist, distance, route and isReachable also come in versions that take node ids.
+ * 
+ * void buildLandmarks(int k) --> picks k landmarks to sharpen the path() heuristic (done on the first
+ * 								  path() query on big maps)
+ * int searchDistance(int from, int to) --> runs path() even if the table or a row knows the answer
+ * long getExpanded() --> no. of nodes path() has expanded on the calling thread
+ * long getQueries() --> no. of distance() and route() queries between two nodes made on the calling thread
+ * static boolean verbose --> if set, prints how long the distance table, landmarks and components took to build,
+ * 							 and the vans a closed road leaves with no way to their next stop (see Van)
+ * 
+ * RowCache getRowCache() --> the distance row cache and its hit/miss/eviction counts (null if we have a table)
+ * void setRowCacheBudget(long bytes) --> how much memory the row cache may use
+ * 
+ * void writeBinary(String file) --> saves the map in the binary format, which the constructor
+ * 									  memory-maps and uses as is (no parsing). 
+ * long gridBytes() --> memory used by the road grid itself.
+ * 
+ * boolean setRoad(int from, int to, boolean open) --> opens or closes the one-way road between two
+ * 									  neighboring nodes, repairing only the distances it affects
+ * boolean closeRoad(Address from, Address to), openRoad(Address from, Address to) --> same, by address
+ * boolean hasRoad(int from, int to) --> checks if we can drive straight from one node to the next
+ * 
+ * Map layout: each cell is a node, with id = EW * NUM_NS + NS. The grid is just
+ * the 4 exit bits of each cell (n = 8, s = 4, e = 2, w = 1), two cells to a byte,
+ * plus one bit per cell saying if it is reachable.
  * 	
  *******************************************************************************/
 
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.*;
 
+/* Queries read the current Roads once and work on that, and all the scratch
+ * space path() needs lives in a per-thread Search, so one Map can be queried
+ * from any number of threads at once without locking. Opening or closing a
+ * road builds a new Roads and swaps it in (see setRoad). */
 public class Map {
-	public int NUM_EW, NUM_NS; //NUM_EW = total no. of e-w running roads.
-	public String[] EW_list, NS_list; //EW: streets that run e-w e.g. 55th
-	private Node[][] grid;
+	public final int NUM_EW, NUM_NS; //NUM_EW = total no. of e-w running roads.
+	public final String[] EW_list, NS_list; //EW: streets that run e-w e.g. 55th
+	private final HashMap<String, Integer> EW_index, NS_index; // street name -> position in EW_list/NS_list
+	private volatile Roads roads; // the road graph as it is now, and the distances worked out from it
+	private long repairedRows;    // rows redone or dropped by setRoad
+	
+	// each thread gets its own scratch space for path().
+	private final ThreadLocal<Search> search = new ThreadLocal<Search>() {
+		protected Search initialValue() {
+			return new Search(NUM_EW * NUM_NS);
+		}
+	};
 	
+	// maps with more nodes than this don't get a distance table (it grows as n^2).
+	private static final int MAX_TABLE_NODES = 4000;
+	// default memory budget of the row cache used instead of the table.
+	public static final long DEFAULT_ROW_CACHE_BYTES = 64L * 1024 * 1024;
+	// no. of landmarks picked for maps with no distTable.
+	public static final int DEFAULT_LANDMARKS = 8;
+	// no. of those a single path() query uses.
+	private static final int ACTIVE_LANDMARKS = 3;
+	
+	// distance(), distances() etc. when there is no way to get there.
+	public static final int UNREACHABLE = -1;
+	// print how long building the distance table etc. took (Benchmark turns this on).
+	public static boolean verbose = false;
+	// most memory the component-to-component reachability bits may take.
+	private static final long MAX_CLOSURE_BYTES = 16L * 1024 * 1024;
+	
+	// binary map file: "SRMB", version, NUM_EW, NUM_NS, length of the street names, 
+	// the names (UTF-8, EW names then NS names, comma separated, one line each), then the cells.
+	private static final int BINARY_MAGIC = 0x53524D42;
+	private static final int BINARY_VERSION = 1;
 	
 	/* compute Manhattan distance between two addresses */
 	public int Mdist(Address from, Address to) {
-		if (from.equals(to))
-			return 0;
-		return Mdist(findNode(from), findNode(to));
+		return Mdist(id(from), id(to));
 	}	
 	
-	/* compute Manhattan distance between two address nodes */
-	private int Mdist(Node start, Node goal) {
-			int xdist, ydist;
-			xdist = Math.abs(start.here.NS - goal.here.NS);
-			ydist = Math.abs(start.here.EW - goal.here.EW);
-		return xdist + ydist;
+	/* compute Manhattan distance between two node ids */
+	public int Mdist(int from, int to) {
+		return Math.abs(from / NUM_NS - to / NUM_NS) + Math.abs(from % NUM_NS - to % NUM_NS);
 	}
-
-	/* A* Distance Algorithm: shortest path between two addresses*/
-	private Pair path(Address from, Address to) {
-		if (!isReachable(from) || !isReachable(to))
+	
+	/* A* Distance Algorithm: shortest path between two addresses, as a Route
+	 * (null if there is none). Works on node ids, with scores kept in the 
+	 * reusable arrays below, so the only thing a query allocates is the route
+	 * it returns. The heuristic is Manhattan distance,
+	 * sharpened by the landmark bounds if we have landmarks. */
+	private Route path(Roads r, int from, int to) {
+		if (!r.isReachable(from) || !r.isReachable(to))
 			System.out.println("Error: Map.path must take in reachable addresses");
 		
-		PriorityQueue<Node> OpenPQ = new PriorityQueue<Node>();
-		LinkedList<Node> CloseList = new LinkedList<Node>(); 
-		
-		if (from.equals(to)) {
-			Address[] route = {to};
-			return new Pair<Integer, Address[]>(0, route);
-		}
+		if (from == to)
+			return new Route(from, to, 0, NUM_NS, Route.newSteps(0));
+		// don't search a whole component for a goal that isn't in reach
+		if (!canReach(r, from, to))
+			return null;
 		
-		Node start = findNode(from);
-		Node goal = findNode(to);
-				
-		OpenPQ.add(start); 
+		Search ctx = search.get();
+		ctx.begin();
+		int[] gscore = ctx.gscore, parent = ctx.parent, closed = ctx.closed;
+		IndexedHeap open = ctx.open;
+		int searchGen = ctx.gen;
+		Landmarks lm = landmarks(r);
+		int[] active = ctx.active;
+		int numActive = (lm == null) ? 0 : pickLandmarks(lm, from, to, ctx);
 		
-		// use Manhattan distance to goal as heuristic
-		start.hscore = Mdist(start, goal);
-		start.fscore = start.hscore;
+		gscore[from] = 0;
+		parent[from] = -1;
+		open.add(from, heuristic(from, to, lm, active, numActive));
 		
-		while(!OpenPQ.isEmpty()) {
-			Node cheapest = OpenPQ.poll();
-			CloseList.add(cheapest);
+		while(!open.isEmpty()) {
+			int cheapest = open.poll();
+			ctx.expanded++;
+			closed[cheapest] = searchGen;
+			int exits = r.exits(cheapest);
 			// check neighbors in all four directions:
 			for(int i = 0; i < 4; i++) {
-				if(cheapest.neighbor[i] != null && !CloseList.contains(cheapest.neighbor[i])) {
-					// if neighbor isn't on openPQ, compute its scores and add it to openPQ
-					if(!OpenPQ.contains(cheapest.neighbor[i])) { 
-						cheapest.neighbor[i].parent = cheapest;
-						cheapest.neighbor[i].gscore = cheapest.gscore + 1;
-						cheapest.neighbor[i].hscore = Mdist(cheapest.neighbor[i], goal);
-						cheapest.neighbor[i].fscore = cheapest.neighbor[i].gscore + cheapest.neighbor[i].hscore;
-						OpenPQ.add(cheapest.neighbor[i]);
-						// if neighbor happens to be target destination, construct & return path
-						if(cheapest.neighbor[i] == goal) {
-							Pair path = constructPath(start, goal);
-							// reset lists
-							while(!OpenPQ.isEmpty()) {
-								Node n = OpenPQ.remove();
-								n.fscore = n.gscore = n.hscore = 0;
-								n.parent = null;
-							}
-							while(!CloseList.isEmpty()) {
-								Node n = CloseList.removeFirst();
-								n.fscore = n.gscore = n.hscore = 0;
-								n.parent = null;
-							}
-							return path;
-						}
-					}
-					// if the neighbor is already on openPQ, update its gscore if we 
-					// can get lower gscore by passing through current cheapest node.
-					else { 
-						if(cheapest.gscore + 1 < cheapest.neighbor[i].gscore) {
-							cheapest.neighbor[i].parent = cheapest;
-							cheapest.neighbor[i].gscore = cheapest.gscore + 1;
-							cheapest.neighbor[i].fscore = cheapest.neighbor[i].gscore + cheapest.neighbor[i].hscore;
-							OpenPQ.remove(cheapest.neighbor[i]);
-							OpenPQ.add(cheapest.neighbor[i]);
-						} 
-						// if not, do nothing
-					}
+				if((exits & (8 >> i)) == 0)
+					continue;
+				int nb = step(cheapest, i);
+				if(closed[nb] == searchGen)
+					continue;
+				int g = gscore[cheapest] + 1;
+				// if neighbor isn't on open list, compute its scores and add it
+				if(!open.contains(nb)) {
+					parent[nb] = cheapest;
+					gscore[nb] = g;
+					// if neighbor happens to be target destination, construct & return path
+					// (the heuristic is consistent, so this is already the shortest)
+					if(nb == to)
+						return constructPath(ctx, to);
+					open.add(nb, g + heuristic(nb, to, lm, active, numActive));
+				}
+				// if the neighbor is already on open list, lower its score if we 
+				// can get lower gscore by passing through current cheapest node.
+				else if(g < gscore[nb]) {
+					int hscore = open.key(nb) - gscore[nb];
+					parent[nb] = cheapest;
+					gscore[nb] = g;
+					open.decreaseKey(nb, g + hscore);
 				}
 			}
 		}
-		
-		// if we couldn't get a path and openPQ is empty, empty closelist
-		while(!CloseList.isEmpty()) {
-			Node n = CloseList.removeFirst();
-			n.fscore = n.gscore = n.hscore = 0;
-			n.parent = null;
-		}		
+		// openlist is empty and we never got to goal.
 		return null;
 	}
 	
-	/* computes the distance and sequence of addresses in shortest path. */
-	private Pair constructPath(Node start, Node goal) {
-		Node n = goal;
-		int dist = 0;
-		while(n != start) {			
-			n = n.parent;
-			dist++;
+	/* lower bound on the distance from v to goal: the Manhattan distance, or 
+	 * better, the triangle inequality around a landmark L:
+	 *   d(L,goal) <= d(L,v) + d(v,goal)   and   d(v,L) <= d(v,goal) + d(goal,L).
+	 * The max of consistent bounds is still consistent. Only the landmarks in
+	 * active[0..numActive) are tried. */
+	private int heuristic(int v, int goal, Landmarks lm, int[] active, int numActive) {
+		int h = Mdist(v, goal);
+		for (int a = 0; a < numActive; a++) {
+			int[] from = lm.from[active[a]];
+			int[] to = lm.to[active[a]];
+			if (from[goal] >= 0 && from[v] >= 0 && from[goal] - from[v] > h)
+				h = from[goal] - from[v];
+			if (to[v] >= 0 && to[goal] >= 0 && to[v] - to[goal] > h)
+				h = to[v] - to[goal];
+		}
+		return h;
+	}
+	
+	/* puts the (up to) ACTIVE_LANDMARKS landmarks that give the best bound from
+	 * start to goal into active, and returns how many there are. Checking a few
+	 * good landmarks per node is cheaper than checking all of them, and the 
+	 * bound is nearly as tight. */
+	private int pickLandmarks(Landmarks lm, int start, int goal, Search ctx) {
+		int count = 0;
+		int[] active = ctx.active;
+		int[] bound = ctx.activeBound;
+		for (int k = 0; k < lm.ids.length; k++) {
+			int b = -1;
+			if (lm.from[k][goal] >= 0 && lm.from[k][start] >= 0)
+				b = lm.from[k][goal] - lm.from[k][start];
+			if (lm.to[k][start] >= 0 && lm.to[k][goal] >= 0)
+				b = Math.max(b, lm.to[k][start] - lm.to[k][goal]);
+			if (b < 0)
+				continue;
+			// insertion sort into the best few, biggest bound first
+			int pos = (count < ACTIVE_LANDMARKS) ? count++ : ACTIVE_LANDMARKS;
+			while (pos > 0 && bound[pos-1] < b) {
+				if (pos < ACTIVE_LANDMARKS) {
+					bound[pos] = bound[pos-1];
+					active[pos] = active[pos-1];
+				}
+				pos--;
+			}
+			if (pos < ACTIVE_LANDMARKS) {
+				bound[pos] = b;
+				active[pos] = k;
+			}
+		}
+		return count;
+	}
+	
+	/* builds the shortest path as a Route, from the parent links. */
+	private Route constructPath(Search ctx, int goal) {
+		int length = ctx.gscore[goal];
+		long[] steps = Route.newSteps(length);
+		int n = goal;
+		for(int k = length - 1; k >= 0; k--) {
+			int p = ctx.parent[n];
+			Route.setStep(steps, k, direction(p, n));
+			n = p;
+		}
+		return new Route(n, goal, length, NUM_NS, steps);
+	}
+	
+	/* Scratch space for one thread's path() queries, indexed by node id. */
+	private static class Search {
+		final int[] gscore, parent;
+		final int[] queue; // for bfs()
+		final int[] active = new int[ACTIVE_LANDMARKS]; // landmarks the current search uses
+		final int[] activeBound = new int[ACTIVE_LANDMARKS]; // and their start-to-goal bounds
+		final int[] closed; // closed[id] == gen if id is closed in current search (-gen: a target of searchAll)
+		final IndexedHeap open;
+		int gen;
+		long expanded; // nodes polled by this thread's searches, for benchmarking
+		long queries;  // distance() and route() calls on this thread, likewise
+		
+		Search(int n) {
+			gscore = new int[n];
+			parent = new int[n];
+			queue = new int[n];
+			closed = new int[n];
+			open = new IndexedHeap(n);
+			gen = 0;
 		}
-		Address[] route = new Address[dist+1];
-		n = goal;
-		int i = dist;
-		while(n != null) {
-			route[i] = n.here;
-			i--;
-			n = n.parent;
+		
+		/* new generation: everything closed by earlier queries is forgotten. */
+		void begin() {
+			if (gen == Integer.MAX_VALUE) {
+				Arrays.fill(closed, 0);
+				gen = 0;
+			}
+			gen++;
+			open.clear();
 		}
-		return new Pair<Integer, Address[]>(dist, route);
 	}
 		
-	/* Returns dist of shortest path */
+	/* Returns dist of shortest path (UNREACHABLE if there is none) */
 	public int distance(Address from, Address to) {		
-		Pair<Integer, Address> path = path(from, to);		
-		return path.first;
+		return distance(id(from), id(to));
 	}
 	
-	/* Returns the sequence of addresses in the shortest path */
+	/* Returns dist of shortest path between two node ids */
+	public int distance(int from, int to) {
+		search.get().queries++;
+		Roads g = roads;
+		int d = tableDist(g, from, to);
+		if (d >= 0)
+			return d;
+		if (g.rowCache != null && g.isReachable(from)) {
+			int[] row = row(g, from);
+			if (row != null && row[to] >= 0)
+				return row[to];
+		}
+		Route path = path(g, from, to);		
+		return (path == null) ? UNREACHABLE : path.length();
+	}
+	
+	/* Returns the sequence of addresses in the shortest path (null if there is none) */
 	public Address[] route(Address from, Address to) {
-		Pair<Integer, Address[]> path = path(from, to);
-		return path.second;
+		Route r = route(id(from), id(to));
+		return (r == null) ? null : r.addresses(this);
+	}
+	
+	/* Returns the shortest path between two node ids (null if there is none) */
+	public Route route(int from, int to) {
+		search.get().queries++;
+		Roads g = roads;
+		int d = tableDist(g, from, to);
+		if (d < 0) {
+			if (g.rowCache != null && g.isReachable(from)) {
+				int[] row = row(g, from);
+				if (row != null && row[to] >= 0)
+					return rowRoute(g, row, to);
+			}
+			return path(g, from, to);
+		}
+		// walk down the table: each step goes to a neighbor that is one closer to goal.
+		long[] steps = Route.newSteps(d);
+		int n = from;
+		for (int k = 1; k <= d; k++) {
+			int exits = g.exits(n);
+			for (int i = 0; i < 4; i++) {
+				if ((exits & (8 >> i)) == 0)
+					continue;
+				int nb = step(n, i);
+				if ((nb == to) ? k == d : tableDist(g, nb, to) == d - k) {
+					Route.setStep(steps, k - 1, i);
+					n = nb;
+					break;
+				}
+			}
+		}
+		return new Route(from, to, d, NUM_NS, steps);
+	}
+	
+	/* Returns the distances from source to each of targets (UNREACHABLE where there is
+	 * no path), using the table or a cached row if there is one, otherwise a
+	 * single BFS that stops once it has reached every target. */
+	public int[] distances(int source, int[] targets) {
+		Roads g = roads;
+		int[] row = null;
+		if (g.distTable != null)
+			row = g.distTable[source];
+		else if (g.rowCache != null && g.isReachable(source))
+			row = row(g, source);
+		if (row == null)
+			return searchAll(g, source, targets, false);
+		int[] rv = new int[targets.length];
+		for (int i = 0; i < targets.length; i++)
+			rv[i] = row[targets[i]];
+		return rv;
+	}
+	
+	/* Returns the distances from each of sources to target (UNREACHABLE where there is
+	 * no path), from the table or else a single BFS backwards from target. */
+	public int[] distancesTo(int[] sources, int target) {
+		Roads g = roads;
+		int[][] distTable = g.distTable;
+		if (distTable != null) {
+			int[] rv = new int[sources.length];
+			int i;
+			for (i = 0; i < sources.length && distTable[sources[i]] != null; i++)
+				rv[i] = distTable[sources[i]][target];
+			if (i == sources.length)
+				return rv;
+		}
+		return searchAll(g, target, sources, true);
+	}
+	
+	/* BFS from source (or towards it, following roads backwards, if reverse) 
+	 * until all of targets are reached or there is nowhere left to go. */
+	private int[] searchAll(Roads g, int source, int[] targets, boolean reverse) {
+		// targets we can't get to (or from) are left out, or we'd never stop early
+		int[] rv = new int[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			boolean reach = reverse ? canReach(g, targets[i], source) : canReach(g, source, targets[i]);
+			rv[i] = reach ? 0 : UNREACHABLE;
+		}
+		
+		Search ctx = search.get();
+		ctx.begin();
+		int gen = ctx.gen;
+		int[] dist = ctx.gscore;
+		int[] mark = ctx.closed;
+		int[] queue = ctx.queue;
+		
+		int remaining = 0;
+		for (int i = 0; i < targets.length; i++) {
+			int t = targets[i];
+			if (rv[i] != UNREACHABLE && mark[t] != -gen) {
+				mark[t] = -gen;
+				remaining++;
+			}
+		}
+		int head = 0, tail = 0;
+		if (mark[source] == -gen)
+			remaining--;
+		mark[source] = gen;
+		dist[source] = 0;
+		queue[tail++] = source;
+		while (head < tail && remaining > 0) {
+			int u = queue[head++];
+			for (int i = 0; i < 4; i++) {
+				int nb;
+				if (!reverse) {
+					if ((g.exits(u) & (8 >> i)) == 0)
+						continue;
+					nb = step(u, i);
+				} else {
+					// nb drives to u by going the opposite way, e.g. north of u drives south.
+					nb = step(u, i);
+					if (nb < 0 || nb >= mark.length || (i >= 2 && nb / NUM_NS != u / NUM_NS)
+							|| (g.exits(nb) & (8 >> (i ^ 1))) == 0)
+						continue;
+				}
+				if (mark[nb] == gen)
+					continue;
+				if (mark[nb] == -gen)
+					remaining--;
+				mark[nb] = gen;
+				dist[nb] = dist[u] + 1;
+				queue[tail++] = nb;
+			}
+		}
+		
+		for (int i = 0; i < targets.length; i++)
+			rv[i] = (mark[targets[i]] == gen) ? dist[targets[i]] : UNREACHABLE;
+		return rv;
+	}
+	
+	/* looks up the distance table, returns -1 if it doesn't know the distance */
+	private int tableDist(Roads g, int from, int to) {
+		if (g.distTable == null || g.distTable[from] == null)
+			return -1;
+		return g.distTable[from][to];
+	}
+	
+	/* gets the row of distances from source out of the row cache. If it isn't
+	 * cached, the BFS for it is only run if the cache has seen this source 
+	 * before; one-off sources get null and are left to path(). */
+	private int[] row(Roads g, int source) {
+		int[] row = g.rowCache.get(source);
+		if (row == null && g.rowCache.admit(source)) {
+			row = bfs(g, source, search.get().queue);
+			g.rowCache.put(source, row);
+		}
+		return row;
+	}
+	
+	/* runs path() between two node ids, ignoring the table and row cache. 
+	 * returns -1 if there is no path. */
+	public int searchDistance(int from, int to) {
+		Route path = path(roads, from, to);
+		return (path == null) ? -1 : path.length();
+	}
+	
+	/* no. of nodes path() has expanded so far on the calling thread */
+	public long getExpanded() {
+		return search.get().expanded;
+	}
+	
+	/* no. of distance() and route() calls made so far on the calling thread */
+	public long getQueries() {
+		return search.get().queries;
+	}
+	
+	/* builds a route from a row of distances from the route's start, walking
+	 * back from to: each step goes to a node that can drive to the current
+	 * one and is one closer to the start. */
+	private Route rowRoute(Roads g, int[] row, int to) {
+		int d = row[to];
+		long[] steps = Route.newSteps(d);
+		int n = to;
+		for (int k = d - 1; k >= 0; k--) {
+			int i = n / NUM_NS;
+			int j = n % NUM_NS;
+			// e.g. the node north of us gets here by driving south.
+			if (i > 0 && row[n - NUM_NS] == k && (g.exits(n - NUM_NS) & 4) != 0) {
+				n = n - NUM_NS;
+				Route.setStep(steps, k, 1);
+			} else if (i < NUM_EW-1 && row[n + NUM_NS] == k && (g.exits(n + NUM_NS) & 8) != 0) {
+				n = n + NUM_NS;
+				Route.setStep(steps, k, 0);
+			} else if (j < NUM_NS-1 && row[n + 1] == k && (g.exits(n + 1) & 1) != 0) {
+				n = n + 1;
+				Route.setStep(steps, k, 3);
+			} else {
+				n = n - 1; // has to be the west neighbor
+				Route.setStep(steps, k, 2);
+			}
+		}
+		return new Route(n, to, d, NUM_NS, steps);
+	}
+	
+	/* the row cache, so its hit/miss/eviction counts can be read. null if
+	 * this map has a full distance table instead. */
+	public RowCache getRowCache() {
+		return roads.rowCache;
+	}
+	
+	/* sets how many bytes of distance rows the row cache may hold */
+	public void setRowCacheBudget(long bytes) {
+		RowCache rowCache = roads.rowCache;
+		if (rowCache != null)
+			rowCache.setBudget(bytes);
+	}
+	
+	/* Builds the all-pairs distance table. Edges all have unit weight, so each
+	 * row is just a BFS from one reachable node; the rows are shared out among
+	 * one worker per core. */
+	private int[][] buildDistTable(final Roads g) {
+		long startTime = System.nanoTime();
+		final int n = NUM_EW * NUM_NS;
+		final int[][] table = new int[n][];
+		final AtomicInteger nextSource = new AtomicInteger(0);
+		int threads = Runtime.getRuntime().availableProcessors();
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<?>> jobs = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			jobs.add(pool.submit(new Runnable() {
+				public void run() {
+					int[] queue = new int[n];
+					int s;
+					while ((s = nextSource.getAndIncrement()) < n) {
+						if (g.isReachable(s))
+							table[s] = bfs(g, s, queue);
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> job : jobs)
+				job.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ex) {
+			throw new RuntimeException("Map: building distance table failed", ex.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		int rows = 0;
+		for (int s = 0; s < n; s++) {
+			if (table[s] != null)
+				rows++;
+		}
+		long ms = (System.nanoTime() - startTime) / 1000000;
+		long bytes = 4L * rows * n;
+		if (verbose)
+			System.out.printf("Map: distance table (%d x %d) built in %d ms on %d threads, %.1f KB\n",
+					rows, n, ms, threads, bytes / 1024.0);
+		return table;
+	}
+	
+	/* single-source BFS over the grid, returns dist from source to every node (-1 if unreachable) */
+	private int[] bfs(Roads g, int source, int[] queue) {
+		int[] dist = new int[NUM_EW * NUM_NS];
+		Arrays.fill(dist, -1);
+		int head = 0, tail = 0;
+		dist[source] = 0;
+		queue[tail++] = source;
+		while (head < tail) {
+			int u = queue[head++];
+			int exits = g.exits(u);
+			for (int i = 0; i < 4; i++) {
+				if ((exits & (8 >> i)) == 0)
+					continue;
+				int nb = step(u, i);
+				if (dist[nb] < 0) {
+					dist[nb] = dist[u] + 1;
+					queue[tail++] = nb;
+				}
+			}
+		}
+		return dist;
+	}
+	
+	/* single-target BFS over the reversed grid, returns dist from every node to target (-1 if it can't get there) */
+	private int[] reverseBfs(Roads g, int target, int[] queue) {
+		int[] dist = new int[NUM_EW * NUM_NS];
+		Arrays.fill(dist, -1);
+		int head = 0, tail = 0;
+		dist[target] = 0;
+		queue[tail++] = target;
+		while (head < tail) {
+			int u = queue[head++];
+			int i = u / NUM_NS;
+			int j = u % NUM_NS;
+			// look for neighbors that drive into u: the node north of u has to go south, etc.
+			if (i > 0 && dist[u - NUM_NS] < 0 && (g.exits(u - NUM_NS) & 4) != 0) {
+				dist[u - NUM_NS] = dist[u] + 1;
+				queue[tail++] = u - NUM_NS;
+			}
+			if (i < NUM_EW-1 && dist[u + NUM_NS] < 0 && (g.exits(u + NUM_NS) & 8) != 0) {
+				dist[u + NUM_NS] = dist[u] + 1;
+				queue[tail++] = u + NUM_NS;
+			}
+			if (j < NUM_NS-1 && dist[u + 1] < 0 && (g.exits(u + 1) & 1) != 0) {
+				dist[u + 1] = dist[u] + 1;
+				queue[tail++] = u + 1;
+			}
+			if (j > 0 && dist[u - 1] < 0 && (g.exits(u - 1) & 2) != 0) {
+				dist[u - 1] = dist[u] + 1;
+				queue[tail++] = u - 1;
+			}
+		}
+		return dist;
+	}
+	
+	/* Picks k landmarks for the path() heuristic and stores the distances from
+	 * and to each of them. Landmarks are picked farthest-first: each new one is
+	 * the reachable node furthest from the landmarks we already have, which 
+	 * puts them out on the edges of the map where their bounds are tightest. */
+	public synchronized void buildLandmarks(int k) {
+		Roads g = roads;
+		g.landmarks = (k <= 0) ? null : findLandmarks(g, k); // k <= 0: back to plain Manhattan distance
+		g.landmarksPicked = true;
+	}
+	
+	/* the farthest-first pick for buildLandmarks. null if nothing is reachable. */
+	private Landmarks findLandmarks(Roads g, int k) {
+		long startTime = System.nanoTime();
+		int n = NUM_EW * NUM_NS;
+		int[] queue = new int[n];
+		int[] ids = new int[k];
+		int[][] from = new int[k][];
+		int[][] to = new int[k][];
+		
+		// closest[v] = min distance from the landmarks so far to v
+		int[] closest = new int[n];
+		Arrays.fill(closest, Integer.MAX_VALUE);
+		int next = -1;
+		for (int v = 0; v < n && next < 0; v++) {
+			if (g.isReachable(v))
+				next = v;
+		}
+		if (next < 0)
+			return null; // nothing on this map is reachable
+		// the first pick is just the node furthest from an arbitrary start.
+		int[] seed = bfs(g, next, queue);
+		next = furthest(g, seed, closest);
+		
+		int count = 0;
+		while (count < k && next >= 0) {
+			ids[count] = next;
+			from[count] = bfs(g, next, queue);
+			to[count] = reverseBfs(g, next, queue);
+			for (int v = 0; v < n; v++) {
+				if (from[count][v] >= 0 && from[count][v] < closest[v])
+					closest[v] = from[count][v];
+			}
+			closest[next] = 0;
+			count++;
+			next = furthest(g, closest, closest);
+		}
+		long ms = (System.nanoTime() - startTime) / 1000000;
+		if (verbose)
+			System.out.printf("Map: %d landmarks picked in %d ms, %.1f KB\n", 
+					count, ms, 8.0 * count * n / 1024.0);
+		return new Landmarks(Arrays.copyOf(ids, count), 
+				Arrays.copyOf(from, count), Arrays.copyOf(to, count));
+	}
+	
+	/* reachable node with the largest score[v] that isn't a landmark yet 
+	 * (closest[v] != 0). scores of -1 or MAX_VALUE don't count. -1 if none. */
+	private int furthest(Roads g, int[] score, int[] closest) {
+		int best = -1;
+		for (int v = 0; v < score.length; v++) {
+			if (!g.isReachable(v) || closest[v] == 0 || score[v] < 0 || score[v] == Integer.MAX_VALUE)
+				continue;
+			if (best < 0 || score[v] > score[best])
+				best = v;
+		}
+		return best;
+	}
+	
+	/* the landmarks for path(). Maps with no distance table pick theirs the
+	 * first time they are needed, so that loading a big map stays quick. */
+	private Landmarks landmarks(Roads g) {
+		if (!g.landmarksPicked && g.distTable == null) {
+			synchronized (this) {
+				if (!g.landmarksPicked) {
+					g.landmarks = findLandmarks(g, DEFAULT_LANDMARKS);
+					g.landmarksPicked = true;
+				}
+			}
+		}
+		return g.landmarks;
+	}
+	
+	/* distances from and to each landmark. Never changed once built (a road
+	 * change makes a new Landmarks with the affected rows redone). */
+	private static class Landmarks {
+		final int[] ids;
+		final int[][] from; // from[k][v] = d(landmark k, v), -1 if none
+		final int[][] to;   // to[k][v] = d(v, landmark k), -1 if none
+		
+		Landmarks(int[] ids, int[][] from, int[][] to) {
+			this.ids = ids;
+			this.from = from;
+			this.to = to;
+		}
 	}
 	
 	/* Make map image, for drawing on */
@@ -169,25 +722,22 @@ public class Map {
 	
 	/* Draw map tiles onto map image */
 	public void drawMap(GenDraw im) {
+		Roads g = roads;
 		int width = NUM_NS;
 		int height = NUM_EW;
 	 				
 		// Walk down each column and draw tiles.
 		for (int j=0; j < width; j++) {			
 			for (int i=0; i < height; i++) {		
-				Node mapnode = getNode(i,j);
-				if (mapnode.reachable) {
+				int mapnode = i * NUM_NS + j;
+				if (g.isReachable(mapnode)) {
 					// for debugging node directions we can call printNode(mapnode).
+					int exits = g.exits(mapnode);
 					boolean n, s, e, w;
-					n = s = e = w = false;
-					if (mapnode.north != null)
-						n = true;
-					if (mapnode.south != null)
-						s = true;
-					if (mapnode.east != null)
-						e = true;
-					if (mapnode.west != null)
-						w = true;
+					n = (exits & 8) != 0;
+					s = (exits & 4) != 0;
+					e = (exits & 2) != 0;
+					w = (exits & 1) != 0;
 					// mapTile is a custom GenDraw function.
 					im.mapTile(j+1, Math.abs(i-height)-0.5, 0.5, n, s, e, w); 
 				}
@@ -212,10 +762,9 @@ public class Map {
 		final Color[] vancolors = {GenDraw.MAGENTA, GenDraw.ORANGE,
 								   GenDraw.GREEN, GenDraw.CYAN};		
 		for (int k = 0; k < vans.length; k++) {
-			Address vanpos = vans[k].here;
-			Node vanNode = findNode(vanpos);
-			int i = vanNode.here.EW;
-			int j = vanNode.here.NS;
+			int vanpos = vans[k].here;
+			int i = vanpos / NUM_NS;
+			int j = vanpos % NUM_NS;
 			im.setPenColor(vancolors[k%vancolors.length]);
 			// represent van with a circle plus its index no.
 			im.circle(j+1, Math.abs(i-height)-0.5, 0.47);
@@ -237,10 +786,9 @@ public class Map {
 		// first draw their pickup locations, slightly NW of tile center
 		Passenger[] plist = v.numWaiting(true);
 		for (int k=0;k<plist.length;k++) {
-			Address ppos = plist[k].pickUp;
-			Node pnode = findNode(ppos);
-			int i = pnode.here.EW;
-			int j = pnode.here.NS;
+			int ppos = id(plist[k].pickUp);
+			int i = ppos / NUM_NS;
+			int j = ppos % NUM_NS;
 			// pickups are drawn in red & yellow, plus passenger id
 			im.setPenColor(GenDraw.RED);
 			im.filledCircle(j+0.95, Math.abs(i-height)-0.45, 0.15);
@@ -252,10 +800,9 @@ public class Map {
 		// next draw their dropoff locations, slightly SE of tile center
 		Passenger[] dlist = v.numWaiting(false);
 		for (int k=0;k<dlist.length;k++) {
-			Address ppos = dlist[k].dropOff;
-			Node dnode = findNode(ppos);
-			int i = dnode.here.EW;
-			int j = dnode.here.NS;
+			int dpos = id(dlist[k].dropOff);
+			int i = dpos / NUM_NS;
+			int j = dpos % NUM_NS;
 			// dropoffs are drawn in blue & green, plus passenger id
 			im.setPenColor(GenDraw.BLUE);
 			im.filledCircle(j+1.05, Math.abs(i-height)-0.55, 0.14);			
@@ -266,190 +813,706 @@ public class Map {
 		}
 	}	
 	
-	/* Map constructor. Scans file to populate grid (file must have a particular format) */
+	/* Map constructor. Reads either a text map file (in the format described in
+	 * MapParser, which throws a MapFormatException saying where the file goes
+	 * wrong) or a binary one written by writeBinary, which is memory-mapped. */
 	public Map(String Filename) {
-		try{
-			Scanner line = new Scanner(new File(Filename));
-			line.useDelimiter("\n");
-			NUM_EW = line.nextInt();
-			NUM_NS = line.nextInt();
-			
-			// make the grid (2d node array):
-			grid = new Node[NUM_EW][NUM_NS];
-			
-			// populate the list of street names from file
-			Scanner EW_names = new Scanner(line.next());
-			Scanner NS_names = new Scanner(line.next());
-			EW_list = new String[NUM_EW];
-			NS_list = new String[NUM_NS];
-			EW_names.useDelimiter(",");
-			NS_names.useDelimiter(",");			
-			for(int i = 0; i < NUM_EW; i++) {
-				EW_list[i] = EW_names.next();
+		MapData data = isBinaryMap(Filename) ? readBinary(Filename) : readText(Filename);
+		NUM_EW = data.numEW;
+		NUM_NS = data.numNS;
+		EW_list = data.EW_list;
+		NS_list = data.NS_list;
+		
+		EW_index = new HashMap<String, Integer>();
+		NS_index = new HashMap<String, Integer>();
+		for(int i = NUM_EW - 1; i >= 0; i--)
+			EW_index.put(EW_list[i], i); // backwards, so a repeated name maps to its first position
+		for(int j = NUM_NS - 1; j >= 0; j--)
+			NS_index.put(NS_list[j], j);
+		
+		Roads g = new Roads(data.cells, new long[(NUM_EW * NUM_NS + 63) / 64]);
+		findReachable(g);
+		long startTime = System.nanoTime();
+		findComponents(g);
+		if (verbose)
+			System.out.printf("Map: %d strongly connected components (largest has %d nodes)%s, found in %d ms\n",
+					g.numComps, g.largestSize, (g.closure == null) ? "" : " with reachability bits",
+					(System.nanoTime() - startTime) / 1000000);
+		
+		// precompute all shortest distances, if the map is small enough.
+		// otherwise, we cache the rows we actually use.
+		if (NUM_EW * NUM_NS <= MAX_TABLE_NODES)
+			g.distTable = buildDistTable(g);
+		else
+			g.rowCache = new RowCache(NUM_EW * NUM_NS, DEFAULT_ROW_CACHE_BYTES);
+		roads = g;
+	}
+	
+	/* Sets the reachable bits of g. Also checks that no cell has an exit off
+	 * the edge of the map. */
+	private void findReachable(Roads g) {
+		for(int i = 0; i < NUM_EW; i++) {			
+			for(int j = 0; j < NUM_NS; j++) {
+				int id = i * NUM_NS + j;
+				int exits = g.exits(id);
+				if ((i == 0 && (exits & 8) != 0) || (i == NUM_EW-1 && (exits & 4) != 0)
+						|| (j == NUM_NS-1 && (exits & 2) != 0) || (j == 0 && (exits & 1) != 0))
+					throw new IllegalArgumentException("Map: cell " + EW_list[i] + "&" + NS_list[j] 
+							+ " has an exit off the edge of the map");
+				g.setReachable(id, wayInAndOut(g, id));
 			}
-			for(int i = 0; i < NUM_NS; i++) {
-				NS_list[i] = NS_names.next();
+		}
+	}
+	
+	/* A node is reachable if it has at least one entrance and one exit. */
+	private boolean wayInAndOut(Roads g, int id) {
+		int i = id / NUM_NS;
+		int j = id % NUM_NS;
+		boolean enter = (i < NUM_EW-1 && (g.exits(id + NUM_NS) & 8) != 0)
+				|| (i > 0 && (g.exits(id - NUM_NS) & 4) != 0)
+				|| (j > 0 && (g.exits(id - 1) & 2) != 0)
+				|| (j < NUM_NS-1 && (g.exits(id + 1) & 1) != 0);
+		return enter && g.exits(id) != 0;
+	}
+	
+	/* One version of the road graph: the exit bits, which nodes are reachable,
+	 * and the distances worked out from them. Nothing in it changes once it is
+	 * published in roads, except that big maps pick their landmarks the first
+	 * time path() needs them. */
+	private class Roads {
+		final ByteBuffer cells; // exit bits, cell id in the low nibble of byte id/2 if id is even, else the high one
+		final long[] reachable; // bit id is set if node id is reachable
+		int[] comp;             // strongly connected component of each node (see findComponents)
+		int numComps, largest, largestSize;
+		int[] compEdgeStart, compEdges; // components each one has a road into: compEdges[compEdgeStart[c]..compEdgeStart[c+1])
+		long[][] closure;       // bit d of closure[c] is set if component c can reach d; null if too big
+		int[][] distTable;      // distTable[s][t] = shortest dist from node s to node t, -1 if none
+		RowCache rowCache;      // single-source rows, for maps with no distTable
+		volatile Landmarks landmarks;     // for the path() heuristic, null if we haven't picked any
+		volatile boolean landmarksPicked; // true once landmarks have been picked (even none)
+		
+		Roads(ByteBuffer cells, long[] reachable) {
+			this.cells = cells;
+			this.reachable = reachable;
+		}
+		
+		/* exit bits of a node: n = 8, s = 4, e = 2, w = 1 */
+		int exits(int id) {
+			return (cells.get(id >> 1) >> ((id & 1) << 2)) & 15;
+		}
+		
+		boolean isReachable(int id) {
+			return (reachable[id >> 6] & (1L << id)) != 0;
+		}
+		
+		void setReachable(int id, boolean r) {
+			if (r)
+				reachable[id >> 6] |= 1L << id;
+			else
+				reachable[id >> 6] &= ~(1L << id);
+		}
+	}
+	
+	/* Opens (open = true) or closes the one-way road from node from to the
+	 * node next to it, to. Returns false if the road was already that way.
+	 * 
+	 * Nothing is rebuilt from scratch. A row of distances from some source is
+	 * only redone if the change can alter it: a closed road has to be the only
+	 * last step of a shortest way to to (row[to] == row[from] + 1, and no other
+	 * way into to does as well), an opened one has to give a shorter way to
+	 * to. The same goes for the landmark rows, and for the rows to each
+	 * landmark with the road driven backwards. Cached rows that
+	 * are affected are just dropped. The components are only worked out
+	 * again where they can change: a closed road inside a component only
+	 * splits it if there's no other way round it (see stillReaches), and
+	 * then only that component is split up (see splitComponent). Everything
+	 * else is shared with the old Roads, and the new one is swapped in when
+	 * it is ready, so queries running meanwhile finish on the graph they
+	 * started on. */
+	public synchronized boolean setRoad(int from, int to, boolean open) {
+		int dir = direction(from, to);
+		if (dir < 0)
+			throw new IllegalArgumentException("Map.setRoad: nodes " + from + " and " + to 
+					+ " are not next to each other");
+		Roads g = roads;
+		int bit = 8 >> dir;
+		if (((g.exits(from) & bit) != 0) == open)
+			return false;
+		
+		// copy on write: queries may still be reading the old cells.
+		byte[] cells = new byte[(NUM_EW * NUM_NS + 1) / 2];
+		g.cells.duplicate().get(cells);
+		cells[from >> 1] ^= bit << ((from & 1) << 2);
+		Roads next = new Roads(ByteBuffer.wrap(cells), g.reachable.clone());
+		// only from (a way out) and to (a way in) can change reachability.
+		next.setReachable(from, wayInAndOut(next, from));
+		next.setReachable(to, wayInAndOut(next, to));
+		int c = g.comp[from];
+		if (c == g.comp[to] && (open || stillReaches(next, g.comp, from, to))) {
+			// an opened road inside a component doesn't change what can reach
+			// what, and a closed one doesn't if there's another way round it
+			next.comp = g.comp;
+			next.numComps = g.numComps;
+			next.largest = g.largest;
+			next.largestSize = g.largestSize;
+			next.compEdgeStart = g.compEdgeStart;
+			next.compEdges = g.compEdges;
+			next.closure = g.closure;
+		} else if (c == g.comp[to])
+			splitComponent(next, g, c);
+		else if (!open || c > g.comp[to])
+			// roads between components only lead to lower numbered ones, so
+			// this one can't join any: just the roads between them change
+			condense(next, g.comp, g.numComps);
+		else
+			findComponents(next);
+		
+		int[] queue = search.get().queue;
+		int redone = 0;
+		if (g.distTable != null) {
+			int[][] table = g.distTable.clone();
+			for (int s = 0; s < table.length; s++) {
+				if (!next.isReachable(s))
+					table[s] = null;
+				else if (table[s] == null || affected(next, table[s], from, to, open, false)) {
+					table[s] = bfs(next, s, queue);
+					redone++;
+				}
 			}
-			
-			// put nodes into every grid cell.
-			for(int i = 0; i < NUM_EW; i++) {			
-				for(int j = 0; j < NUM_NS; j++) {
-					grid[i][j] = new Node(new Address(EW_list[i], NS_list[j]));
-					grid[i][j].here.EW = i;
-					grid[i][j].here.NS = j;
+			next.distTable = table;
+		}
+		if (g.rowCache != null) {
+			RowCache cache = new RowCache(g.rowCache);
+			for (int s : cache.sources()) {
+				if (affected(next, cache.peek(s), from, to, open, false)) {
+					cache.remove(s);
+					redone++;
 				}
 			}
-			
-			// For each E-W (horizontal) street,
-			for(int i = 0; i < NUM_EW; i++) {
-				if(!line.next().equals(EW_list[i])) 
-					System.out.print("File Error: E-W street name doesn't match");
-				// walk across, left to right.
-				for(int j = 0; j < NUM_NS; j++) {
-					Scanner direction = new Scanner(line.next());
-					direction.useDelimiter(",");
-					// file uses 1 & 0 to denote which directions we can exit this
-					// location, in nsew order e.g. 1,0,0,1=can only leave by N and W.
-					if(direction.nextInt() == 1 && i > 0) 
-						grid[i][j].north = grid[i][j].neighbor[0] = grid[i-1][j];						
-					if(direction.nextInt() == 1 && i < NUM_EW) 
-						grid[i][j].south = grid[i][j].neighbor[1] = grid[i+1][j];				
-					if(direction.nextInt() == 1 && j < NUM_NS)
-						grid[i][j].east = grid[i][j].neighbor[2] = grid[i][j+1];
-					if(direction.nextInt() == 1 && j > 0)
-						grid[i][j].west = grid[i][j].neighbor[3] = grid[i][j-1];
+			next.rowCache = cache;
+		}
+		Landmarks lm = g.landmarks;
+		if (lm != null) {
+			int[][] lmFrom = lm.from.clone();
+			int[][] lmTo = lm.to.clone();
+			for (int k = 0; k < lm.ids.length; k++) {
+				if (affected(next, lmFrom[k], from, to, open, false)) {
+					lmFrom[k] = bfs(next, lm.ids[k], queue);
+					redone++;
+				}
+				if (affected(next, lmTo[k], from, to, open, true)) {
+					lmTo[k] = reverseBfs(next, lm.ids[k], queue);
+					redone++;
 				}
 			}
-			
-			// check if each node is reachable(at least one entrance and one exit).
-			for(int i = 0; i < NUM_EW; i++) {				
-				for(int j = 0; j < NUM_NS; j++) {
-					// first, check if we can enter it
-					if(i < NUM_EW-1 && grid[i+1][j].north != null)
-						grid[i][j].reachable = true;
-					if(i > 0 && grid[i-1][j].south != null)
-						grid[i][j].reachable = true;
-					if(j > 0 && grid[i][j-1].east != null)
-						grid[i][j].reachable = true;
-					if(j < NUM_NS-1 && grid[i][j+1].west != null)
-						grid[i][j].reachable = true;
-					// then, check if we can exit it
-					int blocks = 0;
-					for(int k = 0; k < 4; k++) {
-						if(grid[i][j].neighbor[k] == null)
-							blocks++;
-					}
-					if(blocks == 4)
-						grid[i][j].reachable = false;
+			next.landmarks = new Landmarks(lm.ids, lmFrom, lmTo);
+		}
+		next.landmarksPicked = g.landmarksPicked;
+		
+		roads = next;
+		repairedRows += redone;
+		return true;
+	}
+	
+	/* Splits the map into strongly connected components, the largest sets
+	 * of nodes that can all get to each other (see tarjan), and works out
+	 * how they connect (see condense). */
+	private void findComponents(Roads g) {
+		int n = NUM_EW * NUM_NS;
+		int[] comp = new int[n];
+		Arrays.fill(comp, -1);
+		int comps = tarjan(g, null, n, new int[n], comp, 0);
+		condense(g, comp, comps);
+	}
+	
+	/* After a road inside component c of old closed, and c's nodes can't all
+	 * get to each other any more: only c is split up, its pieces taking
+	 * numbers c on and the components above c moving up to make room, so
+	 * roads still only lead to lower numbered components (nothing else in
+	 * c can reach what leads into c, nor be reached from what c leads to). */
+	private void splitComponent(Roads g, Roads old, int c) {
+		int n = NUM_EW * NUM_NS;
+		int[] comp = old.comp.clone();
+		int[] index = new int[n];
+		int[] nodes = new int[n];
+		int count = 0;
+		for (int v = 0; v < n; v++) {
+			if (comp[v] == c) {
+				nodes[count++] = v;
+				comp[v] = -1;
+			} else
+				index[v] = -1; // not in c: tarjan doesn't go there
+		}
+		int pieces = tarjan(g, nodes, count, index, comp, c) - c;
+		for (int v = 0; v < n; v++) {
+			if (index[v] < 0 && comp[v] > c)
+				comp[v] += pieces - 1;
+		}
+		condense(g, comp, old.numComps + pieces - 1);
+	}
+	
+	/* true if from can still get to to on g, after the road between them
+	 * closed: then the rest of their component (numbered as in comp) can
+	 * too, the way it got round through that road. A breadth-first search
+	 * that doesn't leave the component, and stops as soon as it gets there,
+	 * so a closed road with a way round it nearby is cheap. */
+	private boolean stillReaches(Roads g, int[] comp, int from, int to) {
+		Search ctx = search.get();
+		ctx.begin();
+		int gen = ctx.gen;
+		int[] seen = ctx.closed;
+		int[] queue = ctx.queue;
+		int c = comp[from];
+		int head = 0, tail = 0;
+		queue[tail++] = from;
+		seen[from] = gen;
+		while (head < tail) {
+			int u = queue[head++];
+			if (u == to)
+				return true;
+			int exits = g.exits(u);
+			for (int d = 0; d < 4; d++) {
+				if ((exits & (8 >> d)) == 0)
+					continue;
+				int v = step(u, d);
+				if (comp[v] == c && seen[v] != gen) {
+					seen[v] = gen;
+					queue[tail++] = v;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/* Tarjan's algorithm, without recursion (a big map would overflow the
+	 * stack): splits nodes[0..count) (every node, if nodes is null) into
+	 * strongly connected components, numbered from first on. Only roads
+	 * between those nodes are followed: index has to be 0 for them and not
+	 * for the rest, and comp -1 for them. Tarjan finds the components sinks
+	 * first, so a road between two of them always goes from a higher
+	 * numbered one to a lower one. Returns first + the no. of components. */
+	private int tarjan(Roads g, int[] nodes, int count, int[] index, int[] comp, int first) {
+		int n = NUM_EW * NUM_NS;
+		int[] low = new int[n];    // lowest index reachable from the node's subtree, while on the stack
+		int[] stack = new int[count]; // nodes not yet in a component
+		int[] call = new int[count];  // the depth-first path, as a stack
+		byte[] dirs = new byte[n]; // next direction to try from each node on that path
+		int sp = 0, cp = 0, counter = 0, comps = first;
+		
+		for (int r = 0; r < count; r++) {
+			int root = (nodes == null) ? r : nodes[r];
+			if (index[root] != 0)
+				continue;
+			index[root] = low[root] = ++counter;
+			stack[sp++] = root;
+			call[cp++] = root;
+			dirs[root] = 0;
+			while (cp > 0) {
+				int u = call[cp-1];
+				if (dirs[u] < 4) {
+					int d = dirs[u]++;
+					if ((g.exits(u) & (8 >> d)) == 0)
+						continue;
+					int v = step(u, d);
+					if (index[v] == 0) {
+						index[v] = low[v] = ++counter;
+						stack[sp++] = v;
+						call[cp++] = v;
+						dirs[v] = 0;
+					} else if (comp[v] < 0 && index[v] < low[u])
+						low[u] = index[v]; // v is still on the stack
+					continue;
+				}
+				// done with u
+				cp--;
+				if (low[u] == index[u]) {
+					// u is the root of a component: everything above it on the stack
+					int v;
+					do {
+						v = stack[--sp];
+						comp[v] = comps;
+					} while (v != u);
+					comps++;
+				}
+				if (cp > 0 && low[u] < low[call[cp-1]])
+					low[call[cp-1]] = low[u];
+			}
+		}
+		return comps;
+	}
+	
+	/* Given the components (comp, numbered 0 to comps - 1, roads only
+	 * leading to lower numbers): collects the roads between components,
+	 * grouped by the component they leave, finds the largest, and if there
+	 * aren't too many components, gives each the set of components it can
+	 * reach, so canReach() is just a lookup. */
+	private void condense(Roads g, int[] comp, int comps) {
+		int n = NUM_EW * NUM_NS;
+		int[] size = new int[comps];
+		int[] edgeStart = new int[comps + 1];
+		for (int u = 0; u < n; u++) {
+			size[comp[u]]++;
+			int exits = g.exits(u);
+			for (int d = 0; d < 4; d++) {
+				if ((exits & (8 >> d)) != 0 && comp[step(u, d)] != comp[u])
+					edgeStart[comp[u] + 1]++;
+			}
+		}
+		for (int c = 0; c < comps; c++)
+			edgeStart[c + 1] += edgeStart[c];
+		int[] edges = new int[edgeStart[comps]];
+		int[] at = Arrays.copyOf(edgeStart, comps);
+		for (int u = 0; u < n; u++) {
+			int exits = g.exits(u);
+			for (int d = 0; d < 4; d++) {
+				if ((exits & (8 >> d)) != 0 && comp[step(u, d)] != comp[u])
+					edges[at[comp[u]]++] = comp[step(u, d)];
+			}
+		}
+		int largest = 0;
+		for (int c = 1; c < comps; c++) {
+			if (size[c] > size[largest])
+				largest = c;
+		}
+		
+		long[][] closure = null;
+		int words = (comps + 63) / 64;
+		if (8L * words * comps <= MAX_CLOSURE_BYTES) {
+			// lower numbered components come first, so what they reach is already known.
+			closure = new long[comps][words];
+			for (int c = 0; c < comps; c++) {
+				closure[c][c >> 6] |= 1L << c;
+				for (int k = edgeStart[c]; k < edgeStart[c + 1]; k++) {
+					long[] other = closure[edges[k]];
+					for (int w = 0; w < words; w++)
+						closure[c][w] |= other[w];
+				}
+			}
+		}
+		
+		g.comp = comp;
+		g.numComps = comps;
+		g.largest = largest;
+		g.largestSize = (comps == 0) ? 0 : size[largest];
+		g.compEdgeStart = edgeStart;
+		g.compEdges = edges;
+		g.closure = closure;
+	}
+	
+	/* true if there is any way from node from to node to */
+	private boolean canReach(Roads g, int from, int to) {
+		int a = g.comp[from];
+		int b = g.comp[to];
+		if (a == b)
+			return true;
+		if (b > a)
+			return false; // roads only lead to lower numbered components
+		if (g.closure != null)
+			return (g.closure[a][b >> 6] & (1L << b)) != 0;
+		// too many components for the bits: search the components instead of the nodes.
+		Search ctx = search.get();
+		ctx.begin();
+		int gen = ctx.gen;
+		int[] seen = ctx.closed;
+		int[] stack = ctx.queue;
+		int sp = 0;
+		stack[sp++] = a;
+		seen[a] = gen;
+		while (sp > 0) {
+			int c = stack[--sp];
+			for (int k = g.compEdgeStart[c]; k < g.compEdgeStart[c + 1]; k++) {
+				int d = g.compEdges[k];
+				if (d == b)
+					return true;
+				if (d > b && seen[d] != gen) {
+					seen[d] = gen;
+					stack[sp++] = d;
 				}
 			}
 		}
+		return false;
+	}
+	
+	/* can opening or closing the road from->to (as it now is in g) change
+	 * this row of distances? reverse is for rows of distances to a node,
+	 * which use the road backwards: to->from. */
+	private boolean affected(Roads g, int[] row, int from, int to, boolean open, boolean reverse) {
+		int a = reverse ? to : from;
+		int b = reverse ? from : to;
+		if (row[a] < 0)
+			return false;
+		if (open)
+			return row[b] < 0 || row[b] > row[a] + 1;
+		if (row[b] != row[a] + 1)
+			return false;
+		// the road was a shortest last step into b; is there another one?
+		for (int i = 0; i < 4; i++) {
+			int w = step(b, i);
+			if (direction(b, w) < 0 || row[w] < 0 || row[w] + 1 != row[b])
+				continue;
+			// w has to drive to b (or, backwards, b to w)
+			if (reverse ? (g.exits(b) & (8 >> i)) != 0 : (g.exits(w) & (8 >> (i ^ 1))) != 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/* closes the road from one address to the one next to it */
+	public boolean closeRoad(Address from, Address to) {
+		return setRoad(id(from), id(to), false);
+	}
+	
+	/* opens the road from one address to the one next to it */
+	public boolean openRoad(Address from, Address to) {
+		return setRoad(id(from), id(to), true);
+	}
+	
+	/* true if we can drive straight from node from to node to */
+	public boolean hasRoad(int from, int to) {
+		int dir = direction(from, to);
+		return dir >= 0 && (roads.exits(from) & (8 >> dir)) != 0;
+	}
+	
+	/* no. of table, cached and landmark rows that road changes have redone or dropped */
+	public synchronized long getRepairedRows() {
+		return repairedRows;
+	}
+	
+	/* direction (as in step()) that takes us from node from to node to, -1 if
+	 * they aren't next to each other */
+	private int direction(int from, int to) {
+		int n = NUM_EW * NUM_NS;
+		if (from < 0 || from >= n || to < 0 || to >= n)
+			return -1;
+		if (to == from - NUM_NS)
+			return 0;
+		if (to == from + NUM_NS)
+			return 1;
+		if (to == from + 1 && to / NUM_NS == from / NUM_NS)
+			return 2;
+		if (to == from - 1 && to / NUM_NS == from / NUM_NS)
+			return 3;
+		return -1;
+	}
+	
+	/* what a map file gives us, before the Map is built from it */
+	private static class MapData {
+		int numEW, numNS;
+		String[] EW_list, NS_list;
+		ByteBuffer cells;
+	}
+	
+	/* reads a text map file (see MapParser for the format) */
+	private static MapData readText(String Filename) {
+		MapParser p;
+		try {
+			p = MapParser.parse(Filename);
+		}
 		catch(FileNotFoundException ex) {
 		    System.out.println("File not Found");
 		    System.exit(0);
-		}		
+		    return null;
+		}
+		catch(IOException ex) {
+			throw new RuntimeException("Map: can't read " + Filename, ex);
+		}
+		MapData data = new MapData();
+		data.numEW = p.numEW;
+		data.numNS = p.numNS;
+		data.EW_list = p.EW_list;
+		data.NS_list = p.NS_list;
+		data.cells = ByteBuffer.wrap(p.cells);
+		return data;
 	}
 	
+	/* true if the file starts with the binary map magic number */
+	private static boolean isBinaryMap(String Filename) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(Filename));
+			try {
+				return in.readInt() == BINARY_MAGIC;
+			} finally {
+				in.close();
+			}
+		}
+		catch(EOFException ex) {
+			return false; // too short to be binary
+		}
+		catch(FileNotFoundException ex) {
+		    System.out.println("File not Found");
+		    System.exit(0);
+		    return false;
+		}
+		catch(IOException ex) {
+			throw new RuntimeException("Map: can't read " + Filename, ex);
+		}
+	}
 	
+	/* memory-maps a binary map file. The cells are used straight out of the
+	 * mapping; only the street names get decoded. */
+	private static MapData readBinary(String Filename) {
+		MapData data = new MapData();
+		try {
+			RandomAccessFile file = new RandomAccessFile(Filename, "r");
+			MappedByteBuffer buf;
+			try {
+				buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			} finally {
+				file.close(); // the mapping stays valid
+			}
+			buf.getInt(); // magic
+			int version = buf.getInt();
+			if (version != BINARY_VERSION)
+				throw new IllegalArgumentException("Map: " + Filename + " is binary map version " + version 
+						+ ", expected " + BINARY_VERSION);
+			data.numEW = buf.getInt();
+			data.numNS = buf.getInt();
+			byte[] names = new byte[buf.getInt()];
+			buf.get(names);
+			String[] lines = new String(names, "UTF-8").split("\n", -1);
+			data.EW_list = lines[0].split(",", -1);
+			data.NS_list = lines[1].split(",", -1);
+			int cellBytes = (data.numEW * data.numNS + 1) / 2;
+			if (data.EW_list.length != data.numEW || data.NS_list.length != data.numNS 
+					|| buf.remaining() < cellBytes)
+				throw new IllegalArgumentException("Map: " + Filename + " is not a complete binary map");
+			data.cells = buf.slice();
+			return data;
+		}
+		catch(IOException ex) {
+			throw new RuntimeException("Map: can't read " + Filename, ex);
+		}
+	}
 	
-	/* Constructor for Node */
-	private class Node implements Comparable<Node> {
-		Address here; // stores node's address in map
-		boolean reachable; // true if node is reachable by van
-		Node[] neighbor = new Node[4];
-		Node north, south, east, west, parent;
-		int fscore, gscore, hscore; //for path algorithm
+	/* saves this map, as its roads are now, in the binary format (see BINARY_MAGIC) */
+	public void writeBinary(String Filename) throws IOException {
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < NUM_EW; i++)
+			names.append((i > 0) ? "," : "").append(EW_list[i]);
+		names.append("\n");
+		for (int j = 0; j < NUM_NS; j++)
+			names.append((j > 0) ? "," : "").append(NS_list[j]);
+		byte[] nameBytes = names.toString().getBytes("UTF-8");
+		Roads g = roads;
 		
-		public Node(Address a) {
-			here = a;
-			reachable = false;
-			fscore = gscore = hscore = 0;
-			north = south = east = west = parent = null;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(Filename)));
+		try {
+			out.writeInt(BINARY_MAGIC);
+			out.writeInt(BINARY_VERSION);
+			out.writeInt(NUM_EW);
+			out.writeInt(NUM_NS);
+			out.writeInt(nameBytes.length);
+			out.write(nameBytes);
+			int cellBytes = (NUM_EW * NUM_NS + 1) / 2;
+			for (int k = 0; k < cellBytes; k++)
+				out.write(g.cells.get(k));
+		} finally {
+			out.close();
 		}
-		
-		// node comparator, used in path algorithm.
-		public int compareTo(Node n) {
-			double v = this.fscore - n.fscore;
-			if(v < 0)
-				return -1; 		
-			else return 1;
+	}
+	
+	/* memory used by the road grid: the packed exit bits plus the reachable bits */
+	public long gridBytes() {
+		Roads g = roads;
+		return g.cells.capacity() + 8L * g.reachable.length;
+	}
+	
+	/* id of the node next to id in direction dir (0 = n, 1 = s, 2 = e, 3 = w).
+	 * doesn't check that we can actually drive that way. */
+	private int step(int id, int dir) {
+		switch (dir) {
+		case 0: return id - NUM_NS;
+		case 1: return id + NUM_NS;
+		case 2: return id + 1;
+		default: return id - 1;
 		}
 	}
-		
+	
 	/* tells us if an address is reachable */
 	public boolean isReachable(Address a) {
-		return findNode(a).reachable;		
+		return isReachable(id(a));		
+	}
+	
+	/* tells us if a node id is reachable */
+	public boolean isReachable(int id) {
+		return roads.isReachable(id);
 	}
 		
+	/* true if there is any way to drive from one address to another */
+	public boolean canReach(Address from, Address to) {
+		return canReach(id(from), id(to));
+	}
+	
+	/* true if there is any way to drive from one node id to another */
+	public boolean canReach(int from, int to) {
+		return canReach(roads, from, to);
+	}
+	
+	/* true if a node is in the largest strongly connected component, where
+	 * every node can get to every other one */
+	public boolean inLargestComponent(int id) {
+		Roads g = roads;
+		return g.comp[id] == g.largest;
+	}
+	
 	/* return int coords of an address */
 	public int[] findCoords(Address a) {
-		int[] rv = new int[2];
-		int m, n;		
-		m = n = -1;	
-		// first get EW coord
-		for(int i=0; i < EW_list.length;i++) {
-			if(EW_list[i].equals(a.EW_name)) {
-				m = i;				
-				break;	
-			}
-		}
-		// next get NS coord
-		for(int j=0; j < NS_list.length; j++) {
-			if(NS_list[j].equals(a.NS_name)) {
-				n = j;
-				break;
-			}
-		}
-		// if at least of the coords can't be found
-		if(m < 0 || n < 0)
+		int id = id(a);
+		if (id < 0)
 			return null;
-		rv[0] = m;
-		rv[1] = n;
+		int[] rv = {id / NUM_NS, id % NUM_NS};
 		return rv;
 	}
 	
-	
-	/* takes in an address and returns the specific 
-	 * node that is at that address. Doesn't check reachability*/
-	private Node findNode(Address a) {
-		int[] coords = findCoords(a);
-		if (coords != null)
-			return getNode(coords[0],coords[1]);		
-		return null;
+	/* returns the node id of an address, or -1 if a street isn't on the map.
+	 * the street names are only looked up the first time; after that the id 
+	 * is kept in the Address along with this map, and looked up again if the 
+	 * Address is asked of a different map (racing threads just work out the same id). */
+	public int id(Address a) {
+		Address.Resolved r = a.resolved;
+		if (r != null && r.map == this)
+			return r.id;
+		Integer m = EW_index.get(a.EW_name);
+		Integer n = NS_index.get(a.NS_name);
+		// if at least of the coords can't be found
+		if (m == null || n == null)
+			return -1;
+		a.EW = m;
+		a.NS = n;
+		a.resolved = new Address.Resolved(this, m * NUM_NS + n);
+		return m * NUM_NS + n;
 	}
 	
-	/* retrieves the node at the i,j position in grid */
-	private Node getNode(int i, int j) {
-		if(i >= NUM_EW || i < 0 || j >= NUM_NS || j < 0) {
-			System.out.println("Map.getNode error: Target out of range in Map.getNode.");
-			return null;
-		}
-		Node rv = grid[i][j];
-		if (rv == null)
-			System.out.println("Map.getNode error: Node you're trying to get doesn't exist!");		
-		return rv;		
+	/* makes an Address for a node id, with its coords and id already filled in */
+	public Address address(int id) {
+		Address a = new Address(EW_list[id / NUM_NS], NS_list[id % NUM_NS]);
+		a.EW = id / NUM_NS;
+		a.NS = id % NUM_NS;
+		a.resolved = new Address.Resolved(this, id);
+		return a;
 	}
 	
-	/* print node to test if Node was made correctly with the right directions */
-	private void printNode(Node n) {
-		if (n == null) {
-			System.out.println("Map.printNode error: node is null");
+	/* print node to test if it was read in with the right directions */
+	private void printNode(int id) {
+		if (id < 0 || id >= NUM_EW * NUM_NS) {
+			System.out.println("Map.printNode error: no node " + id);
 			return;
 		}
-		String rv = n.here + " has dir: ";
-		if (n.north != null)
+		int exits = roads.exits(id);
+		String rv = address(id) + " has dir: ";
+		if ((exits & 8) != 0)
 			rv += "n ";
 		else rv += "!n ";
 		
-		if (n.south != null)
+		if ((exits & 4) != 0)
 			rv += "s ";
 		else rv += "!s ";
 		
-		if (n.east != null)
+		if ((exits & 2) != 0)
 			rv += "e ";
 		else rv += "!e ";
 		
-		if (n.west != null)
+		if ((exits & 1) != 0)
 			rv += "w ";
 		else rv += "!w ";
 		
@@ -0,0 +1,26 @@
+/*
+ * tclo, melissatan
+ *
+ * Thrown by MapParser when a text map file doesn't follow the format. The
+ * message says where: file, line and column (counted in bytes, from 1).
+ */
+
+public class MapFormatException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final int line, column;
+
+	public MapFormatException(String file, int line, int column, String message) {
+		super(file + ":" + line + ":" + column + ": " + message);
+		this.line = line;
+		this.column = column;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+}
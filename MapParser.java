@@ -0,0 +1,202 @@
+/*
+ * tclo, melissatan
+ *
+ * Reads a text map file in one pass, straight off a buffer of bytes. Only
+ * the street name lines become Strings; a cell is four digits read into the
+ * packed exit bits, with nothing allocated for it.
+ *
+ * Format (one item per line):
+ *   no. of E-W streets
+ *   no. of N-S streets
+ *   E-W street names, comma separated, north to south
+ *   N-S street names, comma separated, west to east
+ *   then for each E-W street: its name, followed by one line per N-S street
+ *   (west to east) of the form n,s,e,w -- 1 if we can leave the corner that
+ *   way, else 0.
+ * Lines may end in \r\n. Anything else that doesn't fit throws a
+ * MapFormatException giving the line and column.
+ */
+
+import java.io.*;
+
+public class MapParser {
+	public int numEW, numNS;
+	public String[] EW_list, NS_list;
+	public byte[] cells; // exit bits (n = 8, s = 4, e = 2, w = 1) of cell id in the low nibble of byte id/2 if id is even, else the high one
+
+	private final String file;
+	private final InputStream in;
+	private final byte[] buf = new byte[1 << 16];
+	private int pos, limit;
+	private int line = 1, col = 1;   // of buf[pos]
+	private byte[] text = new byte[256]; // the line readLine() is working on
+
+	private MapParser(String file, InputStream in) {
+		this.file = file;
+		this.in = in;
+	}
+
+	/* parses a whole map file. Throws FileNotFoundException if it isn't there,
+	 * MapFormatException if it's not a map. */
+	public static MapParser parse(String file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			MapParser p = new MapParser(file, in);
+			p.read();
+			return p;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void read() throws IOException {
+		numEW = readCount("the number of E-W streets");
+		numNS = readCount("the number of N-S streets");
+		if ((long) numEW * numNS > Integer.MAX_VALUE)
+			throw error(2, 1, "map has more than " + Integer.MAX_VALUE + " corners");
+		EW_list = readNames(numEW, "E-W");
+		NS_list = readNames(numNS, "N-S");
+
+		cells = new byte[(int) (((long) numEW * numNS + 1) / 2)];
+		for (int i = 0; i < numEW; i++) {
+			int nameLine = line;
+			String name = readLine();
+			if (!name.equals(EW_list[i]))
+				throw error(nameLine, 1, "expected E-W street \"" + EW_list[i] + "\", found \"" + name + "\"");
+			for (int j = 0; j < numNS; j++) {
+				int exits = readCell();
+				// drop exits that would leave the map
+				if (i == 0)
+					exits &= ~8;
+				if (i == numEW - 1)
+					exits &= ~4;
+				if (j == numNS - 1)
+					exits &= ~2;
+				if (j == 0)
+					exits &= ~1;
+				int id = i * numNS + j;
+				cells[id >> 1] |= exits << ((id & 1) << 2);
+			}
+		}
+		// nothing but blank space after the last cell
+		int c;
+		while ((c = peek()) == ' ' || c == '\t' || c == '\r' || c == '\n')
+			next();
+		if (c >= 0)
+			throw error(line, col, "unexpected " + describe(c) + " after the last corner");
+	}
+
+	/* a positive number on a line of its own */
+	private int readCount(String what) throws IOException {
+		int startLine = line, startCol = col;
+		long v = 0;
+		int digits = 0;
+		while (peek() >= '0' && peek() <= '9') {
+			v = v * 10 + (next() - '0');
+			digits++;
+			if (v > Integer.MAX_VALUE)
+				throw error(startLine, startCol, what + " is too big");
+		}
+		if (digits == 0)
+			throw error(line, col, "expected " + what + ", found " + describe(peek()));
+		endLine();
+		if (v == 0)
+			throw error(startLine, startCol, what + " has to be at least 1");
+		return (int) v;
+	}
+
+	/* a line of exactly count comma separated names */
+	private String[] readNames(int count, String what) throws IOException {
+		int nameLine = line;
+		String[] names = readLine().split(",", -1);
+		if (names.length != count)
+			throw error(nameLine, 1, "expected " + count + " " + what + " street names, found " + names.length);
+		return names;
+	}
+
+	/* one n,s,e,w line, as exit bits */
+	private int readCell() throws IOException {
+		int exits = 0;
+		for (int k = 0; k < 4; k++) {
+			if (k > 0) {
+				if (peek() != ',')
+					throw error(line, col, "expected ',', found " + describe(peek()));
+				next();
+			}
+			int c = peek();
+			if (c == '1')
+				exits |= 8 >> k;
+			else if (c != '0')
+				throw error(line, col, "expected 0 or 1, found " + describe(c));
+			next();
+		}
+		endLine();
+		return exits;
+	}
+
+	/* the rest of the line (without the line break) */
+	private String readLine() throws IOException {
+		int len = 0;
+		int c;
+		while ((c = peek()) != '\n' && c >= 0) {
+			if (len == text.length)
+				text = java.util.Arrays.copyOf(text, 2 * len);
+			text[len++] = (byte) next();
+		}
+		if (c < 0 && len == 0)
+			throw error(line, col, "unexpected end of file");
+		next();
+		if (len > 0 && text[len - 1] == '\r')
+			len--;
+		return new String(text, 0, len, "UTF-8");
+	}
+
+	/* trailing blanks, then the end of the line (or file) */
+	private void endLine() throws IOException {
+		int c;
+		while ((c = peek()) == ' ' || c == '\t' || c == '\r')
+			next();
+		if (c >= 0 && c != '\n')
+			throw error(line, col, "expected the end of the line, found " + describe(c));
+		next();
+	}
+
+	private int peek() throws IOException {
+		if (pos == limit) {
+			pos = 0;
+			limit = in.read(buf, 0, buf.length);
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buf[pos] & 0xff;
+	}
+
+	private int next() throws IOException {
+		int c = peek();
+		if (c < 0)
+			return c;
+		pos++;
+		if (c == '\n') {
+			line++;
+			col = 1;
+		} else
+			col++;
+		return c;
+	}
+
+	private static String describe(int c) {
+		if (c < 0)
+			return "end of file";
+		if (c == '\n' || c == '\r')
+			return "end of line";
+		if (c < ' ' || c > '~')
+			return String.format("byte 0x%02x", c);
+		return "'" + (char) c + "'";
+	}
+
+	private MapFormatException error(int line, int col, String message) {
+		return new MapFormatException(file, line, col, message);
+	}
+}
@@ -14,15 +14,15 @@ public class ObsManager {
     private double sumMDist; // manhattan distance, summed over one trial
     private double sumOfSquaresTT, sumOfSquaresVT, sumOfSquaresMDist;
     private Map m;
-    int[][] pfreq, dfreq; //tracks frequency of pickups & dropoffs at addresses
+    int[] pfreq, dfreq; //tracks frequency of pickups & dropoffs at addresses, indexed by node id
     
 
     
     // produces stats from individual trial
     public ObsManager(Map m) {
     	this.m = m;
-    	this.pfreq = new int[m.NUM_EW][m.NUM_NS];
-    	this.dfreq = new int[m.NUM_EW][m.NUM_NS];
+    	this.pfreq = new int[m.NUM_EW * m.NUM_NS];
+    	this.dfreq = new int[m.NUM_EW * m.NUM_NS];
         this.numPass = 0;
         this.sumTotalTime = 0;
         this.sumInVanTime = 0;    
@@ -41,7 +41,9 @@ public class ObsManager {
     public void recordPass(Passenger p, int currentTime) {  //currentTime = dropOffTime
     	int totalt = currentTime - p.callTime;
     	int inVant = currentTime - p.pickUpTime;   	
-    	int mdist = m.Mdist(p.pickUp, p.dropOff);
+    	int pickUp = m.id(p.pickUp);
+    	int dropOff = m.id(p.dropOff);
+    	int mdist = m.Mdist(pickUp, dropOff);
     	
     	sumTotalTime += totalt;
     	sumInVanTime += inVant;
@@ -54,15 +56,8 @@ public class ObsManager {
         
         numPass++;
      
-        int[] pcoords = m.findCoords(p.pickUp);
-        int s = pcoords[0];
-        int t = pcoords[1];
-        pfreq[s][t]++;
-        
-        int[] dcoords = m.findCoords(p.dropOff);
-        int u = dcoords[0];
-        int v = dcoords[1];
-        dfreq[u][v]++;        
+        pfreq[pickUp]++;
+        dfreq[dropOff]++;
     }
 
     /* compute average total time */
@@ -110,23 +105,25 @@ public class ObsManager {
     
     /* draw pickup and dropoff counts at each address */
     public void frequency(GenDraw im) {
-    	int height = pfreq.length; // same as dfreq.length
-    	int width = pfreq[0].length; // same as dfreq[0].length    	
+    	int height = m.NUM_EW;
+    	int width = m.NUM_NS;
     	// draw pickups
     	for (int i=0; i < height; i++){
     		for (int j=0; j < width; j++) {
-    			if (pfreq[i][j]!=0) {
+    			int id = i * width + j;
+    			if (pfreq[id]!=0) {
     				im.setPenColor(GenDraw.RED);
-    				im.text(j+0.8, Math.abs(i-height)-0.3, Integer.toString(pfreq[i][j]));
+    				im.text(j+0.8, Math.abs(i-height)-0.3, Integer.toString(pfreq[id]));
     			}
     		}
     	}
     	// draw dropoffs    	
     	for (int i=0; i < height; i++){
     		for (int j=0; j < width; j++) {
-    			if (dfreq[i][j]!=0) {
+    			int id = i * width + j;
+    			if (dfreq[id]!=0) {
     				im.setPenColor(GenDraw.BLUE);
-    				im.text(j+1.2, Math.abs(i-height)-0.3, Integer.toString(dfreq[i][j]));
+    				im.text(j+1.2, Math.abs(i-height)-0.3, Integer.toString(dfreq[id]));
     			}
     		}
     	}
@@ -13,7 +13,7 @@
  * 
  * - compare(Van[] vans, Passenger p) --> returns int[3] with cheapest van and 
  * 										  insertion indices for pickup and dropoff
- * 										  to main.
+ * 										  to main, or null if no van has room.
  * 
  * - simpleCompare(Van[] vans, Passenger p) --> returns int[2] with cheapest van and
  * 										  		insertion index for pickup to main. 
@@ -26,7 +26,17 @@
  ***************************************************************************************/
 public class Operator {
 	static int currentTime = 0; //real-time incrementation
-	static int timeCap = 20; //max time we'll make a passenger stay in the van
+	static int timeCap = 20; //max time we'll make a passenger stay in the van (or the direct ride, if longer)
+	static int pickupWindow = 0; //ticks from call to pickup; once a van takes a passenger, no one after puts them off past it. 0 for none
+	static Dispatcher dispatcher = new Dispatcher(); //picks the van for each passenger
+	static int parallelThreshold = Dispatcher.DEFAULT_PARALLEL_THRESHOLD; //fleets this big are checked on every core
+	static boolean batchDispatch = false; //place everyone calling in a tick together (Dispatcher.dispatchBatch)
+	static int indexThreshold = 32; //fleets this big get a VanIndex, so dispatch only looks at vans near the pickup
+	static int optimizeBudget = 0; //microseconds of CPU per tick for reordering schedules in the background, 0 for none
+	static ScheduleOptimizer optimizer = null; //does that reordering, if optimizeBudget > 0
+	static int reassignPeriod = 0; //ticks between rounds of moving waiting passengers to better vans, 0 for none
+	static int reassignDeadline = 2000; //microseconds each of those rounds may take
+	static Reassigner reassigner = null; //runs those rounds, if reassignPeriod > 0
 	public Operator() {
 		
 	}
@@ -36,40 +46,13 @@ public class Operator {
 	/* Our alternate operator algorithm. Returns the cheapest van and 
 	 * its recommended insertion indices for pickup and dropoff. */
 	public static int[] compare(Van[] vans, Passenger p) {
-		int[] rv = new int[3];
-		rv[0] = -1;
-		rv[1] = -1;
-		rv[2] = -1;
-		int[] checkvans = new int[3];
-		int cost = Integer.MAX_VALUE;
-		for (int i=0; i<vans.length; i++) {			
-			checkvans = vans[i].check(p, currentTime);			
-			if (checkvans[0] < cost) {
-				cost = checkvans[0];
-				rv = checkvans;
-				rv[0] = i;
-			}
-		}
-		return rv;
+		return dispatcher.compare(vans, p, currentTime);
 	}
 	
 	/* Simple operator algorithm : Returns the cheapest van and the 
 	 * recommended pickup insertion index. */
 	public static int[] simpleCompare(Van[] vans, Passenger p) {		
-		int[] rv = new int[2];
-		rv[0] = -1;
-		rv[1] = -1;
-		int[] checkvans = new int[2];
-		int cost = Integer.MAX_VALUE;		
-		for (int i=0; i<vans.length; i++) {			
-			checkvans = vans[i].simpleCheck(p, currentTime);			
-			if (checkvans[0] < cost) {
-				cost = checkvans[0];
-				rv = checkvans;
-				rv[0] = i;				
-			}
-		}
-		return rv;
+		return dispatcher.simpleCompare(vans, p, currentTime);
 	}
 	
 	/* main: draw animation for one trial and print statistics */
@@ -81,6 +64,12 @@ public class Operator {
 		
 		Map campus = new Map(args[0]);
 		Experiment e = new Experiment(args[1]);
+		dispatcher.setParallelThreshold(parallelThreshold);
+		dispatcher.setThreads(Runtime.getRuntime().availableProcessors());
+		if (optimizeBudget > 0)
+			optimizer = new ScheduleOptimizer(campus, Runtime.getRuntime().availableProcessors(), optimizeBudget * 1000L);
+		if (reassignPeriod > 0)
+			reassigner = new Reassigner(campus, Runtime.getRuntime().availableProcessors(), reassignDeadline * 1000L);
 		PassengerSample ps = new PassengerSample(campus, e);
 		int mapscale = Integer.parseInt(args[2]);
         
@@ -100,8 +89,13 @@ public class Operator {
 		Van[] svans = new Van[e.numVan]; //for simple algorithm
 		for(int i = 0;i < e.numVan;i++) {
 			vans[i] = new Van(campus, o, e.startAddress, e.vanCap);
+			vans[i].setLimits(timeCap, pickupWindow);
 			svans[i] = new Van(campus, simpleo, e.startAddress, e.vanCap);
 		}
+		VanIndex index = (e.numVan >= indexThreshold) ? new VanIndex(campus, e.numVan) : null;
+		for (int i = 0; i < e.numVan && index != null; i++)
+			vans[i].setIndex(index, i);
+		dispatcher.setIndex(index);
 		
 		// make two images: 
 		// graph shows animation of vans (svans not animated)
@@ -110,11 +104,18 @@ public class Operator {
 		GenDraw count = campus.mkMapCanvas(mapscale);
 		campus.drawMap(count);
 		
+		// passengers no van had room for yet; they ask again every tick
+		java.util.ArrayList<Passenger> waiting = new java.util.ArrayList<Passenger>();
+
 		// begin simulation:
 		while(currentTime <= e.endTime) {
 			graph.clear();
 			campus.drawMap(graph);
 			
+			// take up any better orders found last tick, before the vans move on
+			if (optimizer != null)
+				optimizer.publish(vans);
+
 			// update van positions in map
 			for(int i=0;i < vans.length;i++) {				
 				vans[i].updatePos(currentTime);
@@ -122,30 +123,47 @@ public class Operator {
 				svans[i].updatePos(currentTime);
 			}
 			
-			// get new passenger who calls at current time
-			Passenger nextPass = ps.getNextPassenger(currentTime);		
-			while(nextPass != null) {
-				System.out.println("ps.getNextPassenger produces nextPass = "+nextPass);
-				
-				// assign this passenger to a van, and update that van's route
-				int[] results = compare(vans, nextPass);
-				System.out.println("We choose Van "+results[0]);
-				Van bestvan = vans[results[0]];
-				int indexp = results[1];
-				int indexd = results[2];
-				bestvan.assign(nextPass, indexp, indexd);
-				bestvan.updateRoute();
-				bestvan.printRoute(results[0]);
-				
+			// get new passengers who call at current time
+			java.util.ArrayList<Passenger> calls = new java.util.ArrayList<Passenger>();
+			for (Passenger p = ps.getNextPassenger(currentTime); p != null; p = ps.getNextPassenger(currentTime)) {
+				System.out.println("ps.getNextPassenger produces nextPass = "+p);
+				calls.add(p);
+			}
+			// the vans take whoever is still waiting for one with room, then the new calls
+			java.util.ArrayList<Passenger> toPlace = new java.util.ArrayList<Passenger>(waiting);
+			toPlace.addAll(calls);
+			waiting.clear();
+			if (batchDispatch)
+				waiting.addAll(java.util.Arrays.asList(dispatcher.dispatchBatch(vans, toPlace.toArray(new Passenger[toPlace.size()]), currentTime)));
+			else {
+				for (Passenger nextPass : toPlace) {
+					// assign this passenger to a van, and update that van's route
+					int[] results = compare(vans, nextPass);
+					if (results == null) {
+						System.out.println("No van has room for "+nextPass+", so they wait");
+						waiting.add(nextPass);
+						continue;
+					}
+					System.out.println("We choose Van "+results[0]);
+					Van bestvan = vans[results[0]];
+					int indexp = results[1];
+					int indexd = results[2];
+					bestvan.assign(nextPass, indexp, indexd);
+					bestvan.updateRoute();
+					bestvan.printRoute(results[0]);
+				}
+			}
+			for (Passenger nextPass : calls) {
 				// simple case:
 				int[] sresult = simpleCompare(svans, nextPass);
 				Van sbestvan = svans[sresult[0]];
 				sbestvan.simpleAssign(nextPass, sresult[1]);
 				sbestvan.updateRoute();				
-				
-				// get all other passengers who are calling at this time.
-				nextPass = ps.getNextPassenger(currentTime);
 			}
+			if (reassigner != null && currentTime % reassignPeriod == 0)
+				reassigner.round(vans, currentTime);
+			if (optimizer != null)
+				optimizer.start(vans, currentTime);
 			
 			// slow down, for animation purposes
 			try {
@@ -180,5 +198,10 @@ public class Operator {
 		System.out.println("DATA: SIMPLE avg inVan time is "+simpleo.avgInVanTime());
 		System.out.println("DATA: SIMPLE avg sdVT is "+simpleo.sdVT());
 		System.out.println("DATA: SIMPLE avg mdist is "+simpleo.avgMDist());
+		System.out.println("DATA: "+dispatcher);
+		if (optimizer != null)
+			System.out.println("DATA: "+optimizer);
+		if (reassigner != null)
+			System.out.println("DATA: "+reassigner);
 	}
 }
\ No newline at end of file
@@ -1,7 +1,7 @@
 /*
  * tclo, melissatan
  * 
- * This class used in Map.path
+ * Generic holder for two values.
  * 
  */
 
@@ -7,6 +7,8 @@ public class Passenger {
 	Address pickUp, dropOff;
 	int callTime, pickUpTime;
 	boolean pickdrop = true; //true if we need to pick him up, false if already in Van and needs to be dropped off.
+	int maxRide = Integer.MAX_VALUE; //longest we'll keep him in the van, set once a van takes him (see Van.setLimits)
+	int pickupBy = Integer.MAX_VALUE; //latest we've promised to pick him up, likewise
 	
 	public Passenger(int id, int callTime, Address pickUp, Address dropOff) {
 		this.id = id;
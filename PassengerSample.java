@@ -26,14 +26,15 @@ public class PassengerSample {
         nextPassenger = genPassenger(0);
     }
     
-    /* generates reachable addresses */
+    /* generates addresses in the largest strongly connected part of the map,
+     * so every pickup can get to every dropoff */
     private Address genAddress() {
-		String randEW = m.EW_list[randGen.nextInt(m.NUM_EW)];
-		String randNS = m.NS_list[randGen.nextInt(m.NUM_NS)];
-		Address rv = new Address(randEW, randNS);
-		if(!m.isReachable(rv))
-			rv = genAddress();
-		return rv;
+		int randEW = randGen.nextInt(m.NUM_EW);
+		int randNS = randGen.nextInt(m.NUM_NS);
+		int id = randEW * m.NUM_NS + randNS;
+		if(!m.inLargestComponent(id))
+			return genAddress();
+		return m.address(id);
     }
     
     /* generates random number of passengers per call */
@@ -72,6 +73,11 @@ public class PassengerSample {
     	return null;
     }
     
+    /* when the next passenger calls: getNextPassenger returns null before then */
+    public int nextCallTime() {
+    	return nextPassenger.callTime;
+    }
+    
     /* checks if we're done generating passengers */
     public boolean isEmpty(int currentTime) {
         return (currentTime > e.endTime);
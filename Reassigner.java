@@ -0,0 +1,330 @@
+/*
+ * tclo, melissatan
+ *
+ * Moves passengers who are still waiting to be picked up from one van to
+ * another, when that makes the fleet's schedules cheaper. Dispatch places
+ * each passenger once, in the van that's best at the time; this goes back
+ * over those choices later on (large neighbourhood search).
+ *
+ * A round cuts the fleet into clusters of nearby vans, and works on each
+ * cluster on its own, on copies of its vans (Van(Van)), so the clusters can
+ * go to different threads. Over and over until the round's deadline: pick a
+ * waiting passenger at random, take them and the waiting passengers most
+ * like them (pickups and dropoffs close by, calls close in time) out of the
+ * cluster's vans, and put them back one at a time in whichever van
+ * Van.check says is cheapest. The new schedules are kept if the cluster's
+ * cost went down. That cost is what ScheduleOptimizer works with: the sum,
+ * over every event, of the passenger's weight times how far the van drives
+ * before it gets there.
+ *
+ * At the end of the round, each van whose cluster got cheaper takes on its
+ * copy's schedule (Van.adopt), all of them or none. A cluster that hasn't
+ * finished by the deadline is left as it was: its worker is interrupted,
+ * stops after the try it's on, and the round waits for that, so no worker
+ * is still looking at the vans' passengers once round() returns.
+ *
+ * Public Methods:
+ * -----------------
+ * int round(Van[] vans, int currentTime) --> one round; returns how many vans got new schedules
+ * double getSaved() --> total cost taken off the fleet's schedules
+ * int getMoved() --> passengers who ended up in a different van
+ * int getRounds(), int getLate() --> rounds run, and clusters that missed the deadline
+ * void shutdown() --> stops the worker threads
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+
+public class Reassigner {
+	public static final int DEFAULT_CLUSTER_SIZE = 4;
+	public static final int DEFAULT_REMOVE = 3;
+	public static final int DEFAULT_TRIES = 20;
+	private static final double FAR = 1e9; // cost of a leg that can't be driven
+
+	private final Map m;
+	private final long deadline; // nanoseconds each round may take
+	private final ExecutorService pool;
+	private int clusterSize = DEFAULT_CLUSTER_SIZE;
+	private int remove = DEFAULT_REMOVE;
+	private int tries = DEFAULT_TRIES;
+	private final Random rand = new Random(1);
+	private double saved;
+	private int moved, rounds, late;
+
+	public Reassigner(Map m, int threads, long deadlineNanos) {
+		this.m = m;
+		this.deadline = deadlineNanos;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reassigner");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/* vans per cluster, passengers taken out per try, and tries per cluster per round */
+	public void setSearch(int clusterSize, int remove, int tries) {
+		this.clusterSize = Math.max(2, clusterSize);
+		this.remove = Math.max(1, remove);
+		this.tries = Math.max(1, tries);
+	}
+
+	/* One cluster: copies of its vans, and what became of them. */
+	private class Cluster implements Callable<Cluster> {
+		final int[] van;       // numbers of the vans in the fleet
+		final int[] version;   // their schedules' versions when copied
+		Van[] best;            // cheapest copies found so far
+		final double before;
+		double after;
+		final int currentTime;
+		final long seed, stop;
+		volatile boolean started;
+		final CountDownLatch finished = new CountDownLatch(1);
+
+		Cluster(Van[] vans, int[] members, int currentTime, long seed, long stop) {
+			van = members;
+			version = new int[members.length];
+			best = new Van[members.length];
+			for (int k = 0; k < members.length; k++) {
+				version[k] = vans[members[k]].getSchedule().getVersion();
+				best[k] = new Van(vans[members[k]]);
+			}
+			this.currentTime = currentTime;
+			this.seed = seed;
+			this.stop = stop;
+			before = after = cost(best, currentTime);
+		}
+
+		public Cluster call() {
+			started = true;
+			try {
+				search();
+			} finally {
+				finished.countDown();
+			}
+			return this;
+		}
+
+		private void search() {
+			Random r = new Random(seed);
+			for (int t = 0; t < tries && System.nanoTime() < stop && !Thread.currentThread().isInterrupted(); t++) {
+				Van[] trial = new Van[best.length];
+				for (int k = 0; k < best.length; k++)
+					trial[k] = new Van(best[k]);
+				Passenger[] out = related(trial, r);
+				if (out.length == 0)
+					break;
+				if (!reinsert(trial, out))
+					continue;
+				double c = cost(trial, currentTime);
+				if (c < after - 1e-9) {
+					best = trial;
+					after = c;
+				}
+			}
+		}
+
+		/* takes a random waiting passenger, and the ones most like them, out of trial */
+		private Passenger[] related(Van[] trial, Random r) {
+			ArrayList<Passenger> waiting = new ArrayList<Passenger>();
+			ArrayList<Van> in = new ArrayList<Van>();
+			for (Van v : trial) {
+				Schedule s = v.getSchedule();
+				for (int k = 0; k < s.size(); k++) {
+					if (s.isPickup(k)) {
+						waiting.add(s.passenger(k));
+						in.add(v);
+					}
+				}
+			}
+			if (waiting.isEmpty())
+				return new Passenger[0];
+			Passenger seed = waiting.get(r.nextInt(waiting.size()));
+			long[] order = new long[waiting.size()]; // relatedness << 32 | place in waiting
+			for (int k = 0; k < order.length; k++)
+				order[k] = ((long) relatedness(seed, waiting.get(k)) << 32) | k;
+			Arrays.sort(order);
+			Passenger[] out = new Passenger[Math.min(remove, order.length)];
+			for (int k = 0; k < out.length; k++) {
+				int w = (int) order[k];
+				out[k] = waiting.get(w);
+				in.get(w).cancel(out[k]);
+			}
+			return out;
+		}
+
+		/* puts each passenger back where Van.check says is cheapest; false if one fits nowhere */
+		private boolean reinsert(Van[] trial, Passenger[] out) {
+			for (Passenger p : out) {
+				int bestVan = -1;
+				int[] bestAt = null;
+				for (int k = 0; k < trial.length; k++) {
+					int[] at = trial[k].check(p, currentTime);
+					if (at[0] != Integer.MAX_VALUE && (bestAt == null || at[0] < bestAt[0])) {
+						bestVan = k;
+						bestAt = at;
+					}
+				}
+				if (bestVan < 0)
+					return false;
+				trial[bestVan].place(p, bestAt[1], bestAt[2]);
+			}
+			return true;
+		}
+	}
+
+	public int round(Van[] vans, int currentTime) {
+		rounds++;
+		long stop = System.nanoTime() + deadline;
+		ArrayList<Cluster> clusters = new ArrayList<Cluster>();
+		for (int[] members : clusters(vans))
+			clusters.add(new Cluster(vans, members, currentTime, rand.nextLong(), stop));
+		ArrayList<Future<Cluster>> running = new ArrayList<Future<Cluster>>();
+		for (Cluster c : clusters)
+			running.add(pool.submit(c));
+		int count = 0;
+		ArrayList<Cluster> stopped = new ArrayList<Cluster>();
+		for (int n = 0; n < running.size(); n++) {
+			Future<Cluster> f = running.get(n);
+			Cluster c;
+			try {
+				c = f.get(Math.max(0, stop - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException ex) {
+				f.cancel(true);
+				stopped.add(clusters.get(n));
+				late++;
+				continue;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException ex) {
+				throw new RuntimeException("Reassigner: cluster failed", ex.getCause());
+			}
+			if (c.after >= c.before - 1e-9)
+				continue;
+			// all of the cluster's vans change together, or none of them do
+			boolean current = true;
+			for (int k = 0; k < c.van.length; k++)
+				current &= vans[c.van[k]].getSchedule().getVersion() == c.version[k];
+			if (!current)
+				continue;
+			moved += movedPassengers(vans, c);
+			for (int k = 0; k < c.van.length; k++) {
+				if (c.best[k].getSchedule().getVersion() != c.version[k] && vans[c.van[k]].adopt(c.best[k], c.version[k]))
+					count++;
+			}
+			saved += c.before - c.after;
+		}
+		// a worker that had started on a late cluster finishes the try it's
+		// on; one that hadn't never will (cancel interrupts it or keeps it from running)
+		for (Cluster c : stopped) {
+			try {
+				if (c.started)
+					c.finished.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return count;
+	}
+
+	/* Cuts the fleet into clusters: each starts at the lowest-numbered van
+	 * left that has someone waiting for it, and takes in the vans nearest it
+	 * (Mdist). Clusters with nobody waiting aren't worth working on. */
+	private ArrayList<int[]> clusters(Van[] vans) {
+		ArrayList<int[]> rv = new ArrayList<int[]>();
+		boolean[] taken = new boolean[vans.length];
+		for (int i = 0; i < vans.length; i++) {
+			if (taken[i] || !hasWaiting(vans[i]))
+				continue;
+			long[] near = new long[vans.length]; // Mdist << 32 | van
+			int n = 0;
+			for (int j = 0; j < vans.length; j++) {
+				if (j != i && !taken[j])
+					near[n++] = ((long) m.Mdist(vans[i].here, vans[j].here) << 32) | j;
+			}
+			Arrays.sort(near, 0, n);
+			int[] members = new int[Math.min(clusterSize, n + 1)];
+			members[0] = i;
+			taken[i] = true;
+			for (int k = 1; k < members.length; k++) {
+				members[k] = (int) near[k - 1];
+				taken[members[k]] = true;
+			}
+			rv.add(members);
+		}
+		return rv;
+	}
+
+	private static boolean hasWaiting(Van v) {
+		Schedule s = v.getSchedule();
+		for (int k = 0; k < s.size(); k++) {
+			if (s.isPickup(k))
+				return true;
+		}
+		return false;
+	}
+
+	/* how unlike two passengers are: how far apart their pickups and dropoffs are, plus how far apart they called */
+	private int relatedness(Passenger a, Passenger b) {
+		return m.Mdist(m.id(a.pickUp), m.id(b.pickUp)) + m.Mdist(m.id(a.dropOff), m.id(b.dropOff))
+				+ Math.abs(a.callTime - b.callTime);
+	}
+
+	/* passengers of the cluster whose pickup is in a different van than it was */
+	private static int movedPassengers(Van[] vans, Cluster c) {
+		int count = 0;
+		for (int k = 0; k < c.van.length; k++) {
+			Schedule s = c.best[k].getSchedule();
+			for (int e = 0; e < s.size(); e++) {
+				if (s.isPickup(e) && vans[c.van[k]].getSchedule().find(s.pid(e), true) < 0)
+					count++;
+			}
+		}
+		return count;
+	}
+
+	/* sum over the vans' events of weight times distance driven to get there */
+	private static double cost(Van[] vans, int currentTime) {
+		double total = 0;
+		for (Van v : vans) {
+			Schedule s = v.getSchedule();
+			double driven = 0;
+			for (int k = 0; k < s.size(); k++) {
+				int leg = (k == 0) ? v.firstLeg() : s.distToNext(k - 1);
+				driven += (leg == Map.UNREACHABLE) ? FAR : leg;
+				total += s.passenger(k).weight(currentTime) * driven;
+			}
+		}
+		return total;
+	}
+
+	public double getSaved() {
+		return saved;
+	}
+
+	public int getMoved() {
+		return moved;
+	}
+
+	public int getRounds() {
+		return rounds;
+	}
+
+	public int getLate() {
+		return late;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public String toString() {
+		return String.format("Reassigner: %d rounds, %d passengers moved, weighted cost down %.1f, %d clusters late",
+				rounds, moved, saved, late);
+	}
+}
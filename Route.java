@@ -0,0 +1,128 @@
+/*
+ * tclo, melissatan
+ *
+ * A route over the map: the node id it starts at, plus one direction per
+ * step (0 = n, 1 = s, 2 = e, 3 = w) packed 2 bits each, 32 to a long. That's
+ * a few bytes for a whole leg, instead of an Address object per corner.
+ *
+ * A Route also has a cursor, for the van driving it: node() is where the
+ * van is, advance() takes it one step. Moving along allocates nothing.
+ *
+ * Public Methods:
+ * -----------------
+ * int length() --> no. of steps from start to end
+ * int start(), int end() --> node ids at the two ends
+ * int direction(int k) --> which way step k goes
+ *
+ * int node() --> node the cursor is at
+ * int advance() --> moves the cursor one step on, returns the node it gets to
+ * boolean done() --> true once the cursor is at the end
+ * int remaining() --> no. of steps left after the cursor
+ * boolean uses(int from, int to) --> true if the rest of the route drives from one node straight to the other
+ *
+ * Address[] addresses(Map m) --> every corner on the route, start to end
+ */
+
+public class Route {
+	private final int start, end, length;
+	private final int width;    // Map.NUM_NS, to step from one node id to the next
+	private final long[] steps; // direction of step k is bits 2*(k%32).. of steps[k/32]
+	private int pos, node;      // cursor: steps taken so far, and where that leaves us
+
+	/* Map builds routes: steps from newSteps(), filled in with setStep(). */
+	Route(int start, int end, int length, int width, long[] steps) {
+		this.start = start;
+		this.end = end;
+		this.length = length;
+		this.width = width;
+		this.steps = steps;
+		this.node = start;
+	}
+
+	/* a copy of r, with its own cursor where r's is (the steps are shared: they never change) */
+	Route(Route r) {
+		this(r.start, r.end, r.length, r.width, r.steps);
+		this.pos = r.pos;
+		this.node = r.node;
+	}
+
+	static long[] newSteps(int length) {
+		return new long[(length + 31) / 32];
+	}
+
+	static void setStep(long[] steps, int k, int dir) {
+		steps[k >> 5] |= (long) dir << ((k & 31) << 1);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public int start() {
+		return start;
+	}
+
+	public int end() {
+		return end;
+	}
+
+	public int direction(int k) {
+		return (int) (steps[k >> 5] >>> ((k & 31) << 1)) & 3;
+	}
+
+	public int node() {
+		return node;
+	}
+
+	public int advance() {
+		node = step(node, direction(pos));
+		pos++;
+		return node;
+	}
+
+	public boolean done() {
+		return pos == length;
+	}
+
+	public int remaining() {
+		return length - pos;
+	}
+
+	public boolean uses(int from, int to) {
+		int n = node;
+		for (int k = pos; k < length; k++) {
+			int next = step(n, direction(k));
+			if (n == from && next == to)
+				return true;
+			n = next;
+		}
+		return false;
+	}
+
+	public Address[] addresses(Map m) {
+		Address[] rv = new Address[length + 1];
+		int n = start;
+		rv[0] = m.address(n);
+		for (int k = 0; k < length; k++) {
+			n = step(n, direction(k));
+			rv[k + 1] = m.address(n);
+		}
+		return rv;
+	}
+
+	private int step(int id, int dir) {
+		switch (dir) {
+		case 0: return id - width;
+		case 1: return id + width;
+		case 2: return id + 1;
+		default: return id - 1;
+		}
+	}
+
+	public String toString() {
+		String s = "route " + start;
+		for (int k = 0; k < length; k++)
+			s += "nsew".charAt(direction(k));
+		return s + " (" + length + " steps)";
+	}
+}
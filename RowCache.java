@@ -0,0 +1,152 @@
+/*
+ * tclo, melissatan
+ * 
+ * Bounded cache of single-source distance rows, keyed by source node id.
+ * Map uses it instead of the all-pairs table when the map is too big for one:
+ * a row is one BFS from a source, and answers every query that starts there.
+ * 
+ * A row is only built for a source that has missed before (admit()), so 
+ * sources that are only asked about once don't push out the useful rows.
+ * Least recently used rows are evicted once the rows would take more than the
+ * memory budget. Hit/miss/eviction counts are kept so the budget can be sized.
+ * All methods are synchronized, so one cache can serve many threads.
+ * 
+ * When a road changes, Map copies the cache and drops the rows the change
+ * affects from the copy (sources(), peek(), remove()); the old cache stays
+ * with the old graph.
+ * 
+ */
+
+import java.util.*;
+
+public class RowCache {
+	private final LinkedHashMap<Integer, int[]> rows;
+	private final LinkedHashMap<Integer, Boolean> seen; // sources that missed once, oldest first
+	private final long rowBytes; // memory taken by one row
+	private long budget;         // max bytes of rows we keep
+	private long hits, misses, evictions;
+	
+	public RowCache(int rowLength, long budget) {
+		// access order, so iteration starts from the least recently used row
+		this.rows = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+		this.seen = new LinkedHashMap<Integer, Boolean>();
+		this.rowBytes = 4L * rowLength;
+		this.budget = budget;
+	}
+	
+	/* copy of another cache: same rows (in the same LRU order), budget and counts */
+	public RowCache(RowCache old) {
+		synchronized (old) {
+			this.rows = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+			this.rows.putAll(old.rows);
+			this.seen = new LinkedHashMap<Integer, Boolean>(old.seen);
+			this.rowBytes = old.rowBytes;
+			this.budget = old.budget;
+			this.hits = old.hits;
+			this.misses = old.misses;
+			this.evictions = old.evictions;
+		}
+	}
+	
+	/* returns the cached row for source, or null if we don't have it */
+	public synchronized int[] get(int source) {
+		int[] row = rows.get(source);
+		if (row != null)
+			hits++;
+		else
+			misses++;
+		return row;
+	}
+	
+	/* after a miss: true if source has missed before, so its row is worth
+	 * building. Otherwise remembers source (for a while) and returns false. */
+	public synchronized boolean admit(int source) {
+		if (seen.remove(source) != null)
+			return true;
+		seen.put(source, Boolean.TRUE);
+		// only remember a few times as many sources as we have room for rows
+		Iterator<Integer> oldest = seen.keySet().iterator();
+		while (seen.size() > 4 * maxRows() + 64) {
+			oldest.next();
+			oldest.remove();
+		}
+		return false;
+	}
+	
+	/* stores a freshly computed row, evicting old ones if we're over budget */
+	public synchronized void put(int source, int[] row) {
+		rows.put(source, row);
+		trim();
+	}
+	
+	/* sources of all the rows we have, least recently used first */
+	public synchronized int[] sources() {
+		int[] rv = new int[rows.size()];
+		int i = 0;
+		for (int s : rows.keySet())
+			rv[i++] = s;
+		return rv;
+	}
+	
+	/* the cached row for source, without counting a hit or miss or touching the LRU order */
+	public synchronized int[] peek(int source) {
+		for (java.util.Map.Entry<Integer, int[]> e : rows.entrySet()) {
+			if (e.getKey() == source)
+				return e.getValue();
+		}
+		return null;
+	}
+	
+	/* drops the row for source, if we have it. The source counts as having
+	 * missed before, so the next miss on it builds the row again. */
+	public synchronized void remove(int source) {
+		if (rows.remove(source) != null)
+			seen.put(source, Boolean.TRUE);
+	}
+	
+	/* change the memory budget (in bytes); evicts straight away if it shrank */
+	public synchronized void setBudget(long bytes) {
+		budget = bytes;
+		trim();
+	}
+	
+	/* most rows we can keep; always at least one */
+	public synchronized int maxRows() {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / rowBytes));
+	}
+	
+	private void trim() {
+		int max = maxRows();
+		Iterator<Integer> lru = rows.keySet().iterator();
+		while (rows.size() > max) {
+			lru.next();
+			lru.remove();
+			evictions++;
+		}
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	public synchronized int size() {
+		return rows.size();
+	}
+	
+	public synchronized long bytesUsed() {
+		return rows.size() * rowBytes;
+	}
+	
+	public synchronized String toString() {
+		return String.format("row cache: %d rows (%.1f of %.1f KB), %d hits, %d misses, %d evictions",
+				rows.size(), bytesUsed() / 1024.0, budget / 1024.0, hits, misses, evictions);
+	}
+}
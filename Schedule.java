@@ -0,0 +1,355 @@
+/*
+ * tclo, melissatan
+ *
+ * A van's schedule: the pickups and dropoffs it still has to make, in order.
+ * Each event is kept in parallel arrays (node id of the stop, passenger id,
+ * pickup or dropoff, distance on to the next event, the Route there if the
+ * van has one, and the Passenger), so
+ * event i is one array index away and an insert is a single arraycopy.
+ * Events that have been done come off the front by moving a head index,
+ * without shifting anything. An index from passenger id to where that
+ * passenger's pickup and dropoff are makes find() a lookup instead of a scan;
+ * it's an open addressing table of ints (see IdIndex), so nothing is boxed.
+ *
+ * Public Methods:
+ * -----------------
+ * int size(), boolean isEmpty()
+ * int node(int i) --> node id event i takes the van to
+ * int pid(int i) --> id of the passenger of event i
+ * boolean isPickup(int i) --> true if event i is a pickup, false if a dropoff
+ * Passenger passenger(int i) --> the Passenger of event i
+ * int distToNext(int i), void setDistToNext(int i, int d) --> distance from event i to event i+1
+ * Route leg(int i), void setLeg(int i, Route r) --> route from event i to event i+1 (null if not kept),
+ * 									  setLeg setting distToNext to its length
+ *
+ * void insert(int i, int node, Passenger p, boolean pickup, int distToNext) --> new event i, the rest move down one
+ * void removeFirst() --> drops event 0
+ * void remove(int i) --> drops event i, the rest move up one
+ * int find(int pid, boolean pickup) --> index of that passenger's pickup or dropoff, or -1
+ * String event(int i) --> event i, as text
+ * void reorder(int[] order) --> puts the events in a new order: event k becomes old event order[k]
+ * int getVersion() --> goes up with every change, so a copy can tell if it's out of date
+ */
+
+import java.util.Arrays;
+
+public class Schedule {
+	private int[] node, pid, distToNext;
+	private boolean[] pickup;
+	private Passenger[] passenger;
+	private Route[] leg;
+	private int head, size; // events are at head .. head+size-1
+	private int version;
+	private IdIndex pickAt, dropAt; // passenger id -> array index of its pickup, and of its dropoff
+
+	public Schedule() {
+		this(8);
+	}
+
+	public Schedule(int capacity) {
+		capacity = Math.max(capacity, 1);
+		node = new int[capacity];
+		pid = new int[capacity];
+		distToNext = new int[capacity];
+		pickup = new boolean[capacity];
+		passenger = new Passenger[capacity];
+		leg = new Route[capacity];
+		pickAt = new IdIndex(capacity);
+		dropAt = new IdIndex(capacity);
+	}
+
+	/* a copy of s, which changes on its own from then on; it starts at s's version */
+	public Schedule(Schedule s) {
+		node = s.node.clone();
+		pid = s.pid.clone();
+		distToNext = s.distToNext.clone();
+		pickup = s.pickup.clone();
+		passenger = s.passenger.clone();
+		leg = s.leg.clone();
+		head = s.head;
+		size = s.size;
+		version = s.version;
+		pickAt = new IdIndex(s.pickAt);
+		dropAt = new IdIndex(s.dropAt);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int node(int i) {
+		return node[index(i)];
+	}
+
+	public int pid(int i) {
+		return pid[index(i)];
+	}
+
+	public boolean isPickup(int i) {
+		return pickup[index(i)];
+	}
+
+	public Passenger passenger(int i) {
+		return passenger[index(i)];
+	}
+
+	public int distToNext(int i) {
+		return distToNext[index(i)];
+	}
+
+	public void setDistToNext(int i, int d) {
+		int at = index(i);
+		distToNext[at] = d;
+		leg[at] = null;
+		version++;
+	}
+
+	public Route leg(int i) {
+		return leg[index(i)];
+	}
+
+	/* r is null if there is no way from event i to event i+1 */
+	public void setLeg(int i, Route r) {
+		int at = index(i);
+		distToNext[at] = (r == null) ? Map.UNREACHABLE : r.length();
+		leg[at] = r;
+		version++;
+	}
+
+	public void insert(int i, int node, Passenger p, boolean pickup, int distToNext) {
+		if (i < 0 || i > size)
+			throw new IndexOutOfBoundsException("insert at " + i + " in a schedule of " + size);
+		if (i == 0 && head > 0) {
+			// room in front of the head, nothing to move
+			head--;
+		} else {
+			if (head + size == this.node.length)
+				makeRoom();
+			shift(head + i, head + i + 1, size - i);
+		}
+		size++;
+		set(head + i, node, p, pickup, distToNext);
+		version++;
+	}
+
+	public void removeFirst() {
+		if (size == 0)
+			throw new java.util.NoSuchElementException("schedule is empty");
+		unindex(head);
+		passenger[head] = null;
+		leg[head] = null;
+		head++;
+		size--;
+		if (size == 0)
+			head = 0;
+		version++;
+	}
+
+	public void remove(int i) {
+		int at = index(i);
+		unindex(at);
+		shift(at + 1, at, size - i - 1);
+		size--;
+		passenger[head + size] = null;
+		leg[head + size] = null;
+		if (size == 0)
+			head = 0;
+		version++;
+	}
+
+	public int find(int pid, boolean pickup) {
+		int at = (pickup ? pickAt : dropAt).get(pid);
+		return (at < 0) ? -1 : at - head;
+	}
+
+	public void reorder(int[] order) {
+		if (order.length != size)
+			throw new IllegalArgumentException("reorder: " + order.length + " events for a schedule of " + size);
+		int[] oldNode = node.clone(), oldPid = pid.clone(), oldDist = distToNext.clone();
+		boolean[] oldPickup = pickup.clone();
+		Passenger[] oldPassenger = passenger.clone();
+		Route[] oldLeg = leg.clone();
+		int oldHead = head;
+		Arrays.fill(passenger, null);
+		Arrays.fill(leg, null);
+		pickAt.clear();
+		dropAt.clear();
+		head = 0;
+		for (int k = 0; k < size; k++) {
+			int from = oldHead + order[k];
+			node[k] = oldNode[from];
+			pid[k] = oldPid[from];
+			pickup[k] = oldPickup[from];
+			distToNext[k] = oldDist[from];
+			passenger[k] = oldPassenger[from];
+			leg[k] = oldLeg[from];
+			(pickup[k] ? pickAt : dropAt).put(pid[k], k);
+		}
+		version++;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public String event(int i) {
+		int at = index(i);
+		return (pickup[at] ? "Pickup" : "Dropoff") + " " + passenger[at] + ",with distToNext=" + distToNext[at];
+	}
+
+	private int index(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("event " + i + " of a schedule of " + size);
+		return head + i;
+	}
+
+	private void set(int at, int node, Passenger p, boolean pickup, int distToNext) {
+		this.node[at] = node;
+		this.pid[at] = p.id;
+		this.pickup[at] = pickup;
+		this.distToNext[at] = distToNext;
+		this.leg[at] = null;
+		this.passenger[at] = p;
+		(pickup ? pickAt : dropAt).put(p.id, at);
+	}
+
+	private void unindex(int at) {
+		(pickup[at] ? pickAt : dropAt).remove(pid[at]);
+	}
+
+	/* move count events from index from to index to */
+	private void shift(int from, int to, int count) {
+		System.arraycopy(node, from, node, to, count);
+		System.arraycopy(pid, from, pid, to, count);
+		System.arraycopy(pickup, from, pickup, to, count);
+		System.arraycopy(distToNext, from, distToNext, to, count);
+		System.arraycopy(passenger, from, passenger, to, count);
+		System.arraycopy(leg, from, leg, to, count);
+		for (int at = to; at < to + count; at++)
+			(pickup[at] ? pickAt : dropAt).put(pid[at], at);
+	}
+
+	/* makes space for one more event at the back: slides the events down to
+	 * index 0 if the head has moved on, else doubles the arrays. */
+	private void makeRoom() {
+		if (head > 0) {
+			shift(head, 0, size);
+			Arrays.fill(passenger, size, head + size, null);
+			Arrays.fill(leg, size, head + size, null);
+			head = 0;
+			return;
+		}
+		int capacity = 2 * node.length;
+		node = Arrays.copyOf(node, capacity);
+		pid = Arrays.copyOf(pid, capacity);
+		pickup = Arrays.copyOf(pickup, capacity);
+		distToNext = Arrays.copyOf(distToNext, capacity);
+		passenger = Arrays.copyOf(passenger, capacity);
+		leg = Arrays.copyOf(leg, capacity);
+	}
+
+	/* Passenger id -> array index, with open addressing and linear probing
+	 * in two int arrays: no boxing on every insert and lookup, and a copy is
+	 * two clone()s. It's kept at most half full. */
+	private static class IdIndex {
+		private int[] ids;
+		private int[] at; // array index + 1, 0 for an empty slot
+		private int count;
+
+		IdIndex(int capacity) {
+			int slots = 8;
+			while (slots < 2 * capacity)
+				slots <<= 1;
+			ids = new int[slots];
+			at = new int[slots];
+		}
+
+		IdIndex(IdIndex o) {
+			ids = o.ids.clone();
+			at = o.at.clone();
+			count = o.count;
+		}
+
+		/* array index for id, or -1 */
+		int get(int id) {
+			int mask = ids.length - 1;
+			for (int s = home(id, mask); at[s] != 0; s = (s + 1) & mask) {
+				if (ids[s] == id)
+					return at[s] - 1;
+			}
+			return -1;
+		}
+
+		void put(int id, int index) {
+			if (2 * (count + 1) > ids.length)
+				grow();
+			int mask = ids.length - 1;
+			int s = home(id, mask);
+			while (at[s] != 0 && ids[s] != id)
+				s = (s + 1) & mask;
+			if (at[s] == 0)
+				count++;
+			ids[s] = id;
+			at[s] = index + 1;
+		}
+
+		/* takes id out, moving back any entry after it that probed past its
+		 * slot, so every lookup still finds what it's after before an empty slot */
+		void remove(int id) {
+			int mask = ids.length - 1;
+			int s = home(id, mask);
+			while (at[s] != 0 && ids[s] != id)
+				s = (s + 1) & mask;
+			if (at[s] == 0)
+				return;
+			at[s] = 0;
+			count--;
+			for (int j = (s + 1) & mask; at[j] != 0; j = (j + 1) & mask) {
+				int h = home(ids[j], mask);
+				// leave it if its home is cyclically in (s, j]
+				if ((s <= j) ? (s < h && h <= j) : (s < h || h <= j))
+					continue;
+				ids[s] = ids[j];
+				at[s] = at[j];
+				at[j] = 0;
+				s = j;
+			}
+		}
+
+		void clear() {
+			Arrays.fill(at, 0);
+			count = 0;
+		}
+
+		private void grow() {
+			int[] oldIds = ids, oldAt = at;
+			ids = new int[2 * oldIds.length];
+			at = new int[2 * oldIds.length];
+			count = 0;
+			for (int s = 0; s < oldIds.length; s++) {
+				if (oldAt[s] != 0)
+					put(oldIds[s], oldAt[s] - 1);
+			}
+		}
+
+		private static int home(int id, int mask) {
+			int h = id * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+	}
+
+	/* same format as a List of events: [e0, e1, ...] */
+	public String toString() {
+		StringBuilder s = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				s.append(", ");
+			s.append(event(i));
+		}
+		return s.append("]").toString();
+	}
+}
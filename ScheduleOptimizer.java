@@ -0,0 +1,369 @@
+/*
+ * tclo, melissatan
+ *
+ * Goes back over the vans' schedules in the background, looking for a better
+ * order for the stops already in them. Van.assign only ever puts a new
+ * passenger in; it never moves anyone already there.
+ *
+ * A schedule costs the sum, over its events, of the passenger's weight
+ * times how far the van drives before it gets there. (That's what
+ * Van.check charges for, one insertion at a time.) The optimizer tries three
+ * kinds of move and keeps any that lowers the cost:
+ *   relocate: take one event out and put it back somewhere else
+ *   swap: two events change places
+ *   2-opt: a run of events is driven in reverse
+ * A move has to keep every pickup ahead of its dropoff, and can't put more
+ * passengers in the van at once than its capacity, keep anyone in the van
+ * longer than their maxRide, or get to a pickup after its pickupBy (or
+ * break any of these by more than the old order already did).
+ *
+ * Usage, once a tick: start(vans, currentTime) copies each van's schedule
+ * and here, and hands the copies to the worker threads, which work on them
+ * until they've used up the tick's CPU budget. publish(vans) waits for them,
+ * then gives each van its better order (Van.reorder) in one go, unless
+ * something changed its schedule in the meantime. start() and publish() are
+ * for the thread that runs the vans; nothing else touches a Van.
+ *
+ * Public Methods:
+ * -----------------
+ * void start(Van[] vans, int currentTime) --> starts working on copies of the schedules
+ * int publish(Van[] vans) --> waits, then reorders the vans it improved; returns how many
+ * double getSaved() --> total cost taken off the schedules it has published
+ * long getCpuNanos() --> CPU time the workers have used
+ * int getPublished(), int getStale() --> better orders given to vans, and dropped because the van had changed
+ * void shutdown() --> stops the worker threads
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ScheduleOptimizer {
+	private static final double FAR = 1e9; // cost of a leg that can't be driven
+
+	private final Map m;
+	private final int threads;
+	private final long budget; // CPU nanoseconds per tick, all workers together
+	private final ExecutorService pool;
+	private final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+	private ArrayList<Future<?>> running = new ArrayList<Future<?>>();
+	private Job[] jobs = new Job[0];
+	private double saved;
+	private final AtomicLong cpuNanos = new AtomicLong();
+	private int published, stale;
+
+	public ScheduleOptimizer(Map m, int threads, long budgetNanos) {
+		this.m = m;
+		this.threads = threads;
+		this.budget = budgetNanos;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "schedule optimizer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/* One van's schedule, copied out: the work a worker does on it, and what it found. */
+	private static class Job {
+		final int van, version, capacity;
+		final int[] node;           // stop of each event; node[n] is where the van is
+		final boolean[] pickup;
+		final int[] passenger;      // events of the same passenger have the same number
+		final double[] weight;
+		final double[] due;         // latest each event can be got to (distance from here), for pickupBy and those on board
+		final double[] maxRide;     // by passenger number
+		int[] order;                // better order found, or null
+		double before, after;
+
+		Job(Van v, int van, int currentTime) {
+			Schedule s = v.getSchedule();
+			int n = s.size();
+			this.van = van;
+			version = s.getVersion();
+			capacity = v.capacity;
+			node = new int[n + 1];
+			pickup = new boolean[n];
+			passenger = new int[n];
+			weight = new double[n];
+			due = new double[n];
+			maxRide = new double[n];
+			java.util.HashMap<Integer, Integer> seen = new java.util.HashMap<Integer, Integer>();
+			for (int k = 0; k < n; k++) {
+				node[k] = s.node(k);
+				pickup[k] = s.isPickup(k);
+				Integer p = seen.get(s.pid(k));
+				if (p == null) {
+					p = seen.size();
+					seen.put(s.pid(k), p);
+				}
+				passenger[k] = p;
+				Passenger q = s.passenger(k);
+				weight[k] = q.weight(currentTime);
+				maxRide[p] = q.maxRide;
+				if (pickup[k])
+					due[k] = (q.pickupBy == Integer.MAX_VALUE) ? Double.MAX_VALUE : q.pickupBy - currentTime;
+				else if (s.find(q.id, true) < 0 && q.maxRide != Integer.MAX_VALUE)
+					due[k] = (double) q.pickUpTime + q.maxRide - currentTime;
+				else
+					due[k] = Double.MAX_VALUE;
+			}
+			node[n] = v.here;
+		}
+	}
+
+	public void start(Van[] vans, int currentTime) {
+		ArrayList<Job> todo = new ArrayList<Job>();
+		for (int i = 0; i < vans.length; i++) {
+			// one or two events have no other order worth trying
+			if (vans[i].getSchedule().size() > 2)
+				todo.add(new Job(vans[i], i, currentTime));
+		}
+		jobs = todo.toArray(new Job[todo.size()]);
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicLong left = new AtomicLong(budget);
+		running = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads && t < jobs.length; t++) {
+			running.add(pool.submit(new Runnable() {
+				public void run() {
+					long startCpu = cpu.getCurrentThreadCpuTime();
+					long used = 0;
+					int k;
+					while (left.get() - used > 0 && (k = next.getAndIncrement()) < jobs.length) {
+						long before = cpu.getCurrentThreadCpuTime();
+						optimize(jobs[k], before + left.get() - used);
+						used = cpu.getCurrentThreadCpuTime() - startCpu;
+					}
+					left.addAndGet(-used);
+					cpuNanos.addAndGet(used);
+				}
+			}));
+		}
+	}
+
+	public int publish(Van[] vans) {
+		for (Future<?> f : running) {
+			try {
+				f.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return 0;
+			} catch (ExecutionException ex) {
+				throw new RuntimeException("ScheduleOptimizer: optimizing failed", ex.getCause());
+			}
+		}
+		running.clear();
+		int count = 0;
+		for (Job job : jobs) {
+			if (job.order == null)
+				continue;
+			if (vans[job.van].reorder(job.version, job.order)) {
+				saved += job.before - job.after;
+				published++;
+				count++;
+			} else
+				stale++;
+		}
+		jobs = new Job[0];
+		return count;
+	}
+
+	/* Local search: tries every move, keeps the first one that helps, and goes
+	 * round again until none do or this thread's CPU clock passes deadline. */
+	private void optimize(Job job, long deadline) {
+		int n = job.pickup.length;
+		double[][] d = new double[n + 1][n + 1];
+		for (int a = 0; a <= n; a++) {
+			int[] row = m.distances(job.node[a], job.node);
+			for (int b = 0; b <= n; b++)
+				d[a][b] = (row[b] == Map.UNREACHABLE) ? FAR : row[b];
+		}
+		int[] order = new int[n];
+		for (int k = 0; k < n; k++)
+			order[k] = k;
+		int limit = Math.max(job.capacity, maxLoad(job, order));
+		// limits the old order already breaks are loosened to what it does
+		double[] at = arrivals(d, order);
+		int[] pickAt = new int[n]; // by passenger: their pickup, -1 if they're on board
+		java.util.Arrays.fill(pickAt, -1);
+		for (int k = 0; k < n; k++) {
+			job.due[k] = Math.max(job.due[k], at[k]);
+			if (job.pickup[k])
+				pickAt[job.passenger[k]] = k;
+		}
+		for (int k = 0; k < n; k++) {
+			int p = job.passenger[k];
+			if (!job.pickup[k] && pickAt[p] >= 0)
+				job.maxRide[p] = Math.max(job.maxRide[p], at[k] - at[pickAt[p]]);
+		}
+		double best = cost(job, d, order);
+		job.before = best;
+		int[] trial = new int[n];
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			for (int i = 0; i < n && !improved; i++) {
+				if (cpu.getCurrentThreadCpuTime() > deadline)
+					break;
+				for (int j = 0; j < n && !improved; j++) {
+					if (i == j)
+						continue;
+					for (int move = 0; move < 3 && !improved; move++) {
+						if (move > 0 && j < i)
+							continue; // swap and 2-opt are the same either way round
+						apply(move, order, i, j, trial);
+						if (!feasible(job, trial, limit) || !inTime(job, d, trial))
+							continue;
+						double c = cost(job, d, trial);
+						if (c < best - 1e-9) {
+							best = c;
+							System.arraycopy(trial, 0, order, 0, n);
+							improved = true;
+						}
+					}
+				}
+			}
+		}
+		if (best < job.before - 1e-9) {
+			job.order = order;
+			job.after = best;
+		}
+	}
+
+	/* trial = order with move 0 (relocate i to j), 1 (swap i, j) or 2 (reverse i..j) */
+	private static void apply(int move, int[] order, int i, int j, int[] trial) {
+		int n = order.length;
+		System.arraycopy(order, 0, trial, 0, n);
+		if (move == 0) {
+			int e = order[i];
+			if (i < j)
+				System.arraycopy(order, i + 1, trial, i, j - i);
+			else
+				System.arraycopy(order, j, trial, j + 1, i - j);
+			trial[j] = e;
+		} else if (move == 1) {
+			trial[i] = order[j];
+			trial[j] = order[i];
+		} else {
+			for (int k = i; k <= j; k++)
+				trial[k] = order[i + j - k];
+		}
+	}
+
+	/* sum of weight times distance driven before getting to each event */
+	private static double cost(Job job, double[][] d, int[] order) {
+		int n = order.length;
+		double total = 0, driven = 0;
+		int at = n; // where the van is
+		for (int k = 0; k < n; k++) {
+			driven += d[at][order[k]];
+			total += job.weight[order[k]] * driven;
+			at = order[k];
+		}
+		return total;
+	}
+
+	/* distance driven before getting to each event (by event, not by place in order) */
+	private static double[] arrivals(double[][] d, int[] order) {
+		int n = order.length;
+		double[] at = new double[n];
+		double driven = 0;
+		int from = n;
+		for (int k = 0; k < n; k++) {
+			driven += d[from][order[k]];
+			at[order[k]] = driven;
+			from = order[k];
+		}
+		return at;
+	}
+
+	/* nobody got to after their due, or kept in the van past their maxRide */
+	private static boolean inTime(Job job, double[][] d, int[] order) {
+		int n = order.length;
+		double[] at = arrivals(d, order);
+		double[] pickedUp = new double[n];
+		boolean[] waiting = new boolean[n];
+		for (int k = 0; k < n; k++) {
+			int e = order[k];
+			if (at[e] > job.due[e])
+				return false;
+			int p = job.passenger[e];
+			if (job.pickup[e]) {
+				pickedUp[p] = at[e];
+				waiting[p] = true;
+			} else if (waiting[p] && at[e] - pickedUp[p] > job.maxRide[p])
+				return false;
+		}
+		return true;
+	}
+
+	/* every pickup before its dropoff, and never more than limit on board */
+	private static boolean feasible(Job job, int[] order, int limit) {
+		int n = order.length;
+		boolean[] pickedUp = new boolean[n];
+		boolean[] inSchedule = new boolean[n];
+		for (int k = 0; k < n; k++) {
+			if (job.pickup[k])
+				inSchedule[job.passenger[k]] = true;
+		}
+		for (int k = 0; k < n; k++) {
+			int e = order[k];
+			if (job.pickup[e])
+				pickedUp[job.passenger[e]] = true;
+			else if (inSchedule[job.passenger[e]] && !pickedUp[job.passenger[e]])
+				return false;
+		}
+		return maxLoad(job, order) <= limit;
+	}
+
+	/* most passengers on board at once: those with just a dropoff left start out on board */
+	private static int maxLoad(Job job, int[] order) {
+		int n = order.length;
+		boolean[] hasPickup = new boolean[n];
+		for (int k = 0; k < n; k++) {
+			if (job.pickup[k])
+				hasPickup[job.passenger[k]] = true;
+		}
+		int load = 0;
+		for (int k = 0; k < n; k++) {
+			if (!job.pickup[k] && !hasPickup[job.passenger[k]])
+				load++;
+		}
+		int max = load;
+		for (int k = 0; k < n; k++) {
+			load += job.pickup[order[k]] ? 1 : -1;
+			max = Math.max(max, load);
+		}
+		return max;
+	}
+
+	public double getSaved() {
+		return saved;
+	}
+
+	public long getCpuNanos() {
+		return cpuNanos.get();
+	}
+
+	public int getPublished() {
+		return published;
+	}
+
+	public int getStale() {
+		return stale;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public String toString() {
+		return String.format("ScheduleOptimizer: %d schedules improved (%d stale), weighted cost down %.1f, %.1f ms CPU",
+				published, stale, saved, cpuNanos.get() / 1e6);
+	}
+}
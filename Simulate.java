@@ -10,28 +10,42 @@
  * 
  * - compare(Van[] vans, Passenger p) --> returns int[3] with cheapest van and 
  * 										  insertion indices for pickup and dropoff
- * 										  to runTrial.
+ * 										  to runTrial, or null if no van has room.
  * 
  * - simpleCompare(Van[] vans, Passenger p) --> returns int[2] with cheapest van and
  * 										  		insertion index for pickup to runTrial.
  * 
- * - runTrial(Map m, Experiment e, long seed) --> returns statistics to main.
+ * - runTrial(Map m, Experiment e, long seed) --> returns statistics to main. Skips
+ * 										  the ticks in which nobody calls and no van
+ * 										  gets to a stop (see nextTick).
+ * - runTrial(Map m, Experiment e, long seed, Trial t) --> the same, with what Benchmark
+ * 										  runs it with (see Trial), counting into t.
+ * 
+ * - setRoad(Map m, Van[] vans, int from, int to, boolean open) --> opens or closes
+ * 										  a road under a running fleet, and returns the
+ * 										  passengers its vans can't get to any more.
  * 
  *
  *
  *	KNOWN BUGS:
  * - doesn't run properly with 5x5, it takes forever 
- * - if we initialize rv[0] = rv[1] = -1 in the compare fns,
- * 		compare will break if all the vans are full. We didn't
- * 		have time to write a fn to assign passenger to the
- * 		least busy van if that situation occurs -- now it
- * 		just auto-assigns to van0 if all full.
  *
  *
  *********************************************************************************************/
 public class Simulate {
 	static int currentTime = 0; //real-time incrementation
-	static int timeCap = 20; //max time we'll make a passenger stay in the van
+	static int timeCap = 20; //max time we'll make a passenger stay in the van (or the direct ride, if longer)
+	static int pickupWindow = 0; //ticks from call to pickup; once a van takes a passenger, no one after puts them off past it. 0 for none
+	static Dispatcher dispatcher = new Dispatcher(); //picks the van for each passenger
+	static int parallelThreshold = Dispatcher.DEFAULT_PARALLEL_THRESHOLD; //fleets this big are checked on every core
+	static boolean batchDispatch = false; //place everyone calling in a tick together (Dispatcher.dispatchBatch)
+	static int indexThreshold = 32; //fleets this big get a VanIndex, so dispatch only looks at vans near the pickup
+	static int optimizeBudget = 0; //microseconds of CPU per tick for reordering schedules in the background, 0 for none
+	static ScheduleOptimizer optimizer = null; //does that reordering, if optimizeBudget > 0
+	static int reassignPeriod = 0; //ticks between rounds of moving waiting passengers to better vans, 0 for none
+	static int reassignDeadline = 2000; //microseconds each of those rounds may take
+	static Reassigner reassigner = null; //runs those rounds, if reassignPeriod > 0
+	static boolean eventDriven = true; //skip the ticks in which nothing happens but the vans driving on
 	static int numT = 1000; //no. of trials
 	
 	public Simulate() {
@@ -40,42 +54,72 @@ public class Simulate {
 	
 	/* Returns the cheapest van and its recommended insertion 
 	 * indices for pickup and dropoff. */
-	private static int[] compare(Van[] vans, Passenger p) {
-		int[] rv = new int[3];
-		int[] checkvans = new int[3];
-		int cost = Integer.MAX_VALUE;
-		for (int i=0;i<vans.length;i++) {			
-			checkvans = vans[i].check(p, currentTime);			
-			if (checkvans[0] < cost) {
-				cost = checkvans[0];
-				rv = checkvans;
-				rv[0] = i;
-			}
-		}
-		return rv;
+	private static int[] compare(Van[] vans, Passenger p, Trial t) {
+		if (t.picker != null)
+			return t.picker.pick(vans, p, currentTime);
+		return dispatcher.compare(vans, p, currentTime);
+	}
+	
+	/* What a trial runs with besides the Experiment, for Benchmark to time
+	 * or check it by, and what it counts while it runs. A new one runs the
+	 * trial the way main does. Each runTrial has its own. */
+	static class Trial {
+		Picker picker = null;       //picks the van for each call, in place of dispatcher.compare
+		Address[] vanStarts = null; //van i starts at vanStarts[i], not e.startAddress
+		RoadWorks roadWorks = null; //roads closing and opening while the trial runs
+		boolean keepLegs = true;    //false: vans keep no legs between stops, and route afresh at each one (see Van)
+		long ticksRun;              //ticks the trial stopped at
+		long sentBack;              //passengers the treatment vans gave back to dispatch after a road closed
+	}
+	
+	/* What Benchmark puts in place of dispatcher.compare, to time or check
+	 * the picks runTrial makes: the same answer (van, pickup and dropoff
+	 * positions, or null if no van has room). */
+	interface Picker {
+		int[] pick(Van[] vans, Passenger p, int currentTime);
+	}
+	
+	/* What Benchmark uses to close and open roads while runTrial runs: the
+	 * roads to change at currentTime, each as {from, to, 1 to open or 0 to
+	 * close}. */
+	interface RoadWorks {
+		int[][] changes(int currentTime);
+	}
+	
+	/* Opens or closes the road from node from to node to (Map.setRoad) while
+	 * vans are driving. Every van fixes up its route and schedule
+	 * (Van.roadChanged), and the passengers they can't get to any more are
+	 * returned, to be dispatched again. */
+	public static Passenger[] setRoad(Map m, Van[] vans, int from, int to, boolean open) {
+		if (!m.setRoad(from, to, open))
+			return new Passenger[0];
+		return roadChanged(vans, from, to, open);
+	}
+	
+	private static Passenger[] roadChanged(Van[] vans, int from, int to, boolean open) {
+		java.util.ArrayList<Passenger> back = new java.util.ArrayList<Passenger>();
+		for (Van v : vans)
+			back.addAll(java.util.Arrays.asList(v.roadChanged(from, to, open)));
+		return back.toArray(new Passenger[back.size()]);
 	}
 	
 	/* Simple version : Returns the cheapest van and recommended 
 	 * pickup insertion index. */
 	private static int[] simpleCompare(Van[] vans, Passenger p) {		
-		int[] rv = new int[2];
-		int cost = Integer.MAX_VALUE;		
-		int[] checkvans = new int[2];
-		for (int i=0;i<vans.length;i++) {			
-			checkvans = vans[i].simpleCheck(p, currentTime);
-			if (checkvans[0] < cost) {
-				cost = checkvans[0];
-				rv = checkvans;
-				rv[0] = i;				
-			}
-		}
-		return rv;
+		return dispatcher.simpleCompare(vans, p, currentTime);
 	}
 	
 	
 	/* Runs a trial, getting stats for both the alternate and simple operators */
 	public static double[][] runTrial(Map m, Experiment e, long seed){
+		return runTrial(m, e, seed, new Trial());
+	}
+	
+	/* the same, with what t says, counting into t */
+	static double[][] runTrial(Map m, Experiment e, long seed, Trial t){
 		currentTime = 0;
+		t.ticksRun = 0;
+		t.sentBack = 0;
 		// return statistics generated in rv.
 		double[][] rv = new double[2][3];
 		
@@ -90,47 +134,94 @@ public class Simulate {
 		Van[] vans = new Van[e.numVan];  //our treatment group
 		Van[] svans = new Van[e.numVan]; //the original control group
 		for(int i = 0;i < e.numVan;i++) {
-			vans[i] = new Van(m, o, e.startAddress, e.vanCap);
-			svans[i] = new Van(m, simpleo, e.startAddress, e.vanCap);
+			Address start = (t.vanStarts == null) ? e.startAddress : t.vanStarts[i];
+			vans[i] = new Van(m, o, start, e.vanCap, t.keepLegs);
+			vans[i].setLimits(timeCap, pickupWindow);
+			svans[i] = new Van(m, simpleo, start, e.vanCap, t.keepLegs);
 		}
+		VanIndex index = (e.numVan >= indexThreshold) ? new VanIndex(m, e.numVan) : null;
+		for (int i = 0; i < e.numVan && index != null; i++)
+			vans[i].setIndex(index, i);
+		dispatcher.setIndex(index);
 		
+		// passengers no van had room for yet; they ask again every tick
+		java.util.ArrayList<Passenger> waiting = new java.util.ArrayList<Passenger>();
+
 		// begin simulation:
 		while(currentTime <= e.endTime) {
+			t.ticksRun++;
 			
+			// take up any better orders found last tick, before the vans move on
+			if (optimizer != null)
+				optimizer.publish(vans);
+
 			// update van positions in map
 			for(int i=0;i < vans.length;i++) {				
 				vans[i].updatePos(currentTime);				
 				svans[i].updatePos(currentTime);
 			}
 			
-			// get new passenger who calls at current time
-			Passenger nextPass = ps.getNextPassenger(currentTime);		
-			while(nextPass != null) {				
-				// assign this passenger to a van, and update that van's route
-				int[] results = compare(vans, nextPass);				
-				Van bestvan = vans[results[0]];
-				int indexp = results[1];
-				int indexd = results[2];
-				bestvan.assign(nextPass, indexp, indexd);
-				bestvan.updateRoute();				
-				
+			// roads closing and opening: whoever the vans can't get to any more
+			// is placed again, along with the new calls
+			java.util.ArrayList<Passenger> sback = new java.util.ArrayList<Passenger>();
+			for (int[] c : (t.roadWorks == null) ? new int[0][] : t.roadWorks.changes(currentTime)) {
+				boolean open = (c[2] != 0);
+				if (m.hasRoad(c[0], c[1]) == open)
+					continue;
+				Passenger[] back = setRoad(m, vans, c[0], c[1], open);
+				t.sentBack += back.length;
+				waiting.addAll(java.util.Arrays.asList(back));
+				sback.addAll(java.util.Arrays.asList(roadChanged(svans, c[0], c[1], open)));
+			}
+			
+			// get new passengers who call at current time
+			java.util.ArrayList<Passenger> calls = new java.util.ArrayList<Passenger>();
+			for (Passenger p = ps.getNextPassenger(currentTime); p != null; p = ps.getNextPassenger(currentTime))
+				calls.add(p);
+			// the vans take whoever is still waiting for one with room, then the new calls
+			java.util.ArrayList<Passenger> toPlace = new java.util.ArrayList<Passenger>(waiting);
+			toPlace.addAll(calls);
+			waiting.clear();
+			if (batchDispatch)
+				waiting.addAll(java.util.Arrays.asList(dispatcher.dispatchBatch(vans, toPlace.toArray(new Passenger[toPlace.size()]), currentTime)));
+			else {
+				for (Passenger nextPass : toPlace) {
+					// assign this passenger to a van, and update that van's route
+					int[] results = compare(vans, nextPass, t);
+					if (results == null) {
+						waiting.add(nextPass);
+						continue;
+					}
+					Van bestvan = vans[results[0]];
+					int indexp = results[1];
+					int indexd = results[2];
+					bestvan.assign(nextPass, indexp, indexd);
+					bestvan.updateRoute();				
+				}
+			}
+			sback.addAll(calls);
+			for (Passenger nextPass : sback) {
 				// simple case:
 				int[] sresult = simpleCompare(svans, nextPass);
 				Van sbestvan = svans[sresult[0]];
 				sbestvan.simpleAssign(nextPass, sresult[1]);
 				sbestvan.updateRoute();				
-				
-				// get all other passengers who are calling at this time.
-				nextPass = ps.getNextPassenger(currentTime);
 			}
+			if (reassigner != null && currentTime % reassignPeriod == 0)
+				reassigner.round(vans, currentTime);
+			if (optimizer != null)
+				optimizer.start(vans, currentTime);
 			
 			// slow down, for animation purposes
 			try {
 		        Thread.sleep(0);		        
 		    } catch (InterruptedException ex) {;}
 			
-			currentTime++;
+			currentTime = nextTick(ps, e, vans, svans, waiting, t);
 		}
+		// finish off the last tick's work, so none of it is left for the next trial's vans
+		if (optimizer != null)
+			optimizer.publish(vans);
 		
 		// data		
 		rv[0][0] = o.avgTotalTime();		
@@ -144,6 +235,32 @@ public class Simulate {
 	}
 	
 	
+	/* The next tick runTrial has to stop at: currentTime + 1, or with
+	 * eventDriven the first tick in which someone calls or a van gets to a
+	 * stop (or the trial ends). In the ticks before that, all that would
+	 * happen is the vans driving a step each, so they're driven on to it
+	 * (Van.skip) and the results are the same as going a tick at a time.
+	 * Passengers waiting for a van with room, the optimizer and reassigner
+	 * all have something to do every tick, and t.roadWorks can change a road
+	 * in any tick, so then it's one tick at a time.
+	 * The next tick is found by asking every van, since each stop touches
+	 * every van anyway: they all drive on to it and are looked at by
+	 * dispatch. */
+	private static int nextTick(PassengerSample ps, Experiment e, Van[] vans, Van[] svans,
+			java.util.ArrayList<Passenger> waiting, Trial t) {
+		if (!eventDriven || optimizer != null || reassigner != null || t.roadWorks != null || !waiting.isEmpty())
+			return currentTime + 1;
+		int next = Math.min(ps.nextCallTime(), e.endTime + 1);
+		for (int i = 0; i < vans.length; i++)
+			next = Math.min(next, Math.min(vans[i].nextStop(currentTime), svans[i].nextStop(currentTime)));
+		next = Math.max(next, currentTime + 1);
+		for (int i = 0; i < vans.length; i++) {
+			vans[i].skip(next - currentTime - 1);
+			svans[i].skip(next - currentTime - 1);
+		}
+		return next;
+	}
+
 	/* main: run each operator numT times to generate statistics */
 	public static void main(String[] args) {
 		if (args.length < 3) {
@@ -151,6 +268,12 @@ public class Simulate {
 		}	
 		Map campus = new Map(args[0]);
 		Experiment e = new Experiment(args[1]);
+		dispatcher.setParallelThreshold(parallelThreshold);
+		dispatcher.setThreads(Runtime.getRuntime().availableProcessors());
+		if (optimizeBudget > 0)
+			optimizer = new ScheduleOptimizer(campus, Runtime.getRuntime().availableProcessors(), optimizeBudget * 1000L);
+		if (reassignPeriod > 0)
+			reassigner = new Reassigner(campus, Runtime.getRuntime().availableProcessors(), reassignDeadline * 1000L);
 						
 		// random seed
 		long seed;
@@ -188,6 +311,13 @@ public class Simulate {
         System.out.println("DATA: SIMPLE sd  ATT = "+simpleData.sdATT());
         System.out.println("DATA: SIMPLE avg AVT = "+simpleData.meanAVT());
         System.out.println("DATA: SIMPLE sd  AVT = "+simpleData.sdAVT());        
+        System.out.println("DATA: " + dispatcher);
+        if (optimizer != null)
+        	System.out.println("DATA: " + optimizer);
+        if (reassigner != null)
+        	System.out.println("DATA: " + reassigner);
+        if (campus.getRowCache() != null)
+        	System.out.println("DATA: " + campus.getRowCache());
 	}
 	
 }
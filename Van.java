@@ -6,51 +6,102 @@
  *  Address getFirst() --> returns address of first event in sched
  *  
  * 	int updatePos(int currentTime) --> updates van's position 
- *  void updateRoute() 			   --> updates the van's route based on sched  
+ *  void updateRoute() 			   --> routes the van to the first stop in sched, if it isn't on its way there
  *  void printRoute() 			   --> prints route.
+ *  (the van's route is a Route, which keeps track of where the van is on it. The schedule
+ *   keeps the legs between stops too, so after a stop the van drives on along the next one.)
+ *  Passenger[] roadChanged(int from, int to, boolean open) --> fixes up the route and schedule after 
+ *  									 Map.setRoad(from, to, open), and returns the passengers it
+ *  									 can't get to any more
  * 
  * 	Passenger[] numWaiting() --> returns array of passengers waiting for this van
  * 
  * 	int[] check(Passenger, int currentTIme) --> returns the cheapest pickup and dropoff positions 
  *  int[] simpleCheck(Passenger, int currentTime) --> returns cheapest pickup position
+ *  int lowerBound(Passenger, int currentTime) --> cost check() can't come in under (see Dispatcher)
  * 
  * 	void assign(Passenger, int i, int j) --> inserts Passenger into schedule at i (pickup) and j (dropoff) 
  *  void simpleAssign(Passenger, int i)  --> inserts Passenger into schedule at i(pickup) and tail(dropoff)   
  * 
  * 	Passenger find(Passenger p, bool pickdrop) --> returns passenger, either pickup or dropoff
  *  
- *  boolean cancel(Passenger) --> removes Passenger, and returns bool to check success of remove
+ *  boolean cancel(Passenger) --> removes Passenger's pickup and dropoff, and returns bool to check success of remove
  *  (we didn't have the time to implement a passenger order system that would use this function)
  *  
- *  boolean isFull()  --> checks if sched is at or over capacity
+ *  boolean reorder(int version, int[] order) --> puts the schedule in a new order, if it hasn't changed since version
+ *  boolean adopt(Van copy, int version) --> takes the schedule and route of a changed copy, if this hasn't changed since version
+ *  int nextStop(int currentTime) --> next tick at which updatePos gets to a stop
+ *  void skip(int ticks) --> drives on through ticks in which it gets to no stop
+ *  void setLimits(int timeCap, int pickupWindow) --> longest ride, and pickup promised within pickupWindow of the call
+ *  void setIndex(VanIndex index, int number) --> keeps index up to date with where this van (no. number) is
+ *  
+ *  boolean isFull()  --> checks if as many passengers are on board as there are seats
  *  boolean isEmpty() --> checks if sched is empty
  * 
  * ******************************************************************* */
 
-import java.util.*;
-
 public class Van {
 	public Map m;
 	public ObsManager o;
-	public Address here;
-	public Address[] route;
-	public int capacity, ri; // so we can easily retrieve route[ri]	
+	public int here; // node id
+	public Route route;
+	public int capacity;
+	private final boolean keepLegs; // false: no legs kept, a fresh route at every stop (for Benchmark legs)
+
+	private Schedule schedule;
+	private VanIndex index; // if set, told whenever here changes or the schedule empties or fills
+	private int number;     // this van's number in index
 
-	private LinkedList<PassengerPair> schedule;
+	// load profile, worked out again when the schedule changes (see updateLoads)
+	private int onboard;    // passengers in the van now
+	private int[] load;     // load[k]: passengers in the van after event k
+	private Schedule loadOf;
+	private int loadVersion;
+
+	// ride-time limits (see setLimits), and the time profile check() tests them against (see updateSlack)
+	private int timeCap = Integer.MAX_VALUE; // longest ride, unless the direct one is longer
+	private int pickupWindow;                // ticks from call to pickup a van promises, 0 for no promise
+	private int[] arrive;   // arrive[k]: distance the van drives before it gets to event k
+	private int[] slack;    // slack[k]: most events k on can all be put off by, without breaking a limit
+	private int[] allow;    // allow[k]: most event k can be put off by, or its ride made longer by
+	private int[] rideFrom; // rideFrom[k]: where the pickup is, for a dropoff with a ride limit whose pickup is to come; else -1
+	private Schedule slackOf;
+	private int slackVersion, slackTime;
 
 	public Van(Map m, ObsManager o, Address startAddress, int capacity) {
+		this(m, o, startAddress, capacity, true);
+	}
+
+	public Van(Map m, ObsManager o, Address startAddress, int capacity, boolean keepLegs) {
 		this.m = m;
 		this.o = o;
-		this.here = startAddress;
+		this.here = m.id(startAddress);
 		this.capacity = capacity;
-		this.schedule = new LinkedList<PassengerPair>();
+		this.keepLegs = keepLegs;
+		this.schedule = new Schedule(2 * capacity);
+	}
+
+	/* For Reassigner: a copy of v, to try changes on. It has its own copy of
+	 * v's Route, since v may drive on while the copy is being worked on, and
+	 * isn't in v's VanIndex. */
+	Van(Van v) {
+		this.m = v.m;
+		this.o = v.o;
+		this.here = v.here;
+		this.route = (v.route == null) ? null : new Route(v.route);
+		this.capacity = v.capacity;
+		this.keepLegs = v.keepLegs;
+		this.timeCap = v.timeCap;
+		this.pickupWindow = v.pickupWindow;
+		this.schedule = new Schedule(v.schedule);
 	}
 
 	
 
 	/* return the Address at the head of the schedule. */ 
 	public Address getFirst() {
-		Address rv = (schedule.getFirst().p.pickdrop) ? schedule.getFirst().p.pickUp : schedule.getFirst().p.dropOff;
+		Passenger first = schedule.passenger(0);
+		Address rv = (schedule.isPickup(0)) ? first.pickUp : first.dropOff;
 		return rv;
 	}
 
@@ -62,35 +113,44 @@ public class Van {
 			return;
 		}
 		// if street flag, don't increment ri yet:
-		while (route.length == 1) {
-			PassengerPair removeme = schedule.removeFirst();
-			System.out.println("REMOVE (street flag)"+removeme);		
-			if (removeme.p.pickdrop){
-				removeme.p.pickUpTime = currentTime; // we don't use this, but just to be safe
-				Passenger counterpart = find(removeme.p, false);
+		while (route != null && route.length() == 0) {
+			System.out.println("REMOVE (street flag)"+schedule.event(0));
+			Passenger removeme = schedule.passenger(0);
+			boolean pickdrop = schedule.isPickup(0);
+			Route leg = schedule.leg(0);
+			schedule.removeFirst();
+			if (pickdrop){
+				removeme.pickUpTime = currentTime; // we don't use this, but just to be safe
+				Passenger counterpart = find(removeme, false);
 				counterpart.pickUpTime = currentTime;				
 			}
 			else 										
-				o.recordPass(removeme.p, currentTime);
+				o.recordPass(removeme, currentTime);
 
 			//System.out.println("Van " + vanID + ": REMOVE " + removeme);
 			//System.out.println("Van " + vanID + " new sched: " + schedule);			
-			updateRoute();
+			driveOn(leg);
+		}
+		if (route == null) {
+			reindex();
+			return;
 		}
 		
-		ri++;
-		here = route[ri];
-		//System.out.printf("Van %d updatePos: %d->%d out of total length %d\n", vanID, ri - 1, ri, route.length);		
+		here = route.advance();
+		//System.out.printf("Van %d updatePos: %d steps left\n", vanID, route.remaining());		
 		
 		// otherwise, for regular pickups and dropoffs:
-		while (route != null && ri == route.length - 1) {
-			PassengerPair removeme = schedule.removeFirst();
-			//System.out.println("REMOVE "+removeme);
+		while (route != null && route.done()) {
+			//System.out.println("REMOVE "+schedule.event(0));
+			Passenger removeme = schedule.passenger(0);
+			boolean pickdrop = schedule.isPickup(0);
+			Route leg = schedule.leg(0);
+			schedule.removeFirst();
 			// if we're picking up someone,
-			if (removeme.p.pickdrop){
-				removeme.p.pickUpTime = currentTime;
+			if (pickdrop){
+				removeme.pickUpTime = currentTime;
 				// look for the passenger's scheduled dropoff event
-				Passenger counterpart = find(removeme.p, false);
+				Passenger counterpart = find(removeme, false);
 				//if (counterpart == null) {
 				//	System.out.println("van.updatepos error: pickup doesnt have dropoff inserted");
 				//	System.out.println(schedule);
@@ -98,38 +158,200 @@ public class Van {
 				counterpart.pickUpTime = currentTime;
 			}
 			else 										
-				o.recordPass(removeme.p, currentTime);
+				o.recordPass(removeme, currentTime);
 			//System.out.print("Prior to REMOVE, Van " + vanID + " is at " + here + "; ");
 			//System.out.println("REMOVE " + removeme);
 			//System.out.println("Van " + vanID + " new sched: " + schedule);
-			updateRoute();
+			driveOn(leg);
 		}
 		//System.out.println("Van " + vanID + ": current Address=" + here);
+		reindex();
 	}
 	
-	/* updates van's route. */
+	/* The first tick after currentTime at which updatePos has more to do
+	 * than drive one step on: a stop, or a route with no steps (the street
+	 * flag). Integer.MAX_VALUE for a van with nowhere to go. */
+	public int nextStop(int currentTime) {
+		if (route == null)
+			return Integer.MAX_VALUE;
+		if (route.length() == 0)
+			return currentTime + 1;
+		return currentTime + route.remaining();
+	}
+
+	/* Drives ticks steps on, for ticks before nextStop: the same as calling
+	 * updatePos for each of them. */
+	public void skip(int ticks) {
+		if (route == null || ticks <= 0)
+			return;
+		for (int k = 0; k < ticks; k++)
+			here = route.advance();
+		reindex();
+	}
+
+	/* Routes the van to the first stop in the schedule. A van already on its
+	 * way there keeps its route: what's left of a shortest path is a
+	 * shortest path from here, so there's nothing to search for. */
 	public void updateRoute() {
-		PassengerPair next = schedule.peek();
-		if (next == null) {
-			here = route[ri];
+		if (keepLegs && route != null && !schedule.isEmpty() && route.end() == schedule.node(0))
+			return;
+		reroute();
+	}
+
+	/* After a stop: the van drives on along leg, the one the schedule kept
+	 * from that stop to the next, or else gets a fresh route. */
+	private void driveOn(Route leg) {
+		if (keepLegs && leg != null && !schedule.isEmpty() && leg.start() == route.node() && leg.end() == schedule.node(0))
+			route = leg;
+		else
+			reroute();
+	}
+
+	/* a fresh route from here to the first stop. With no way there (a road
+	 * closed, see roadChanged) the van has no route and waits where it is,
+	 * until a road opens; with Map.verbose, it says so. */
+	private void reroute() {
+		if (schedule.isEmpty()) {
+			if (route != null)
+				here = route.node();
 			route = null;
-			ri = 0;
 			//System.out.println("Van stops here:" + here);
+			reindex();
 			return;
 		}
-		Address destination = (next.p.pickdrop) ? next.p.pickUp	: next.p.dropOff;
-		route = m.route(here, destination);
-		ri = 0;
+		route = m.route(here, schedule.node(0));
+		if (route == null && Map.verbose)
+			System.out.println("error: van at " + m.address(here) + " has no way to its next stop, " + m.address(schedule.node(0)) + "; waits for a road to open");
+	}
+	
+	/* Call after m.setRoad(from, to, open), on every van (see
+	 * Simulate.setRoad). The legs between scheduled stops that the change
+	 * can alter are looked up again (see relink). A closed road can cut the van off from some of its stops, so
+	 * the schedule is put in an order it can still drive (see
+	 * reachableOrder), and the passengers it can't take any more are
+	 * returned, to be dispatched again. Then the van is rerouted if its route
+	 * drives down a road that just closed, if an opened road gets it to the
+	 * next stop sooner, or if it had no route to the next stop at all. */
+	public Passenger[] roadChanged(int from, int to, boolean open) {
+		for (int k = 0; k + 1 < schedule.size(); k++)
+			relink(k, from, to, open);
+		java.util.ArrayList<Passenger> back = new java.util.ArrayList<Passenger>();
+		if (!open)
+			reachableOrder(back);
+		Passenger[] rv = back.toArray(new Passenger[back.size()]);
+		if (schedule.isEmpty()) {
+			if (route != null)
+				reroute();
+			return rv;
+		}
+		if (route == null || route.end() != schedule.node(0)) {
+			reroute();
+			return rv;
+		}
+		boolean reroute;
+		if (open)
+			reroute = m.distance(here, schedule.node(0)) < route.remaining();
+		else
+			reroute = route.uses(from, to);
+		if (reroute)
+			reroute();
+		return rv;
+	}
+
+	/* The leg from event k to the next after m.setRoad(from, to, open),
+	 * with as few searches as it takes. A closed road only makes the legs
+	 * that drive down it longer; the others are still shortest paths. An
+	 * opened one can only make a leg shorter, which the distance says, and
+	 * then it's searched again. With no legs kept, the distance is all
+	 * there is to go on. */
+	private void relink(int k, int from, int to, boolean open) {
+		Route leg = schedule.leg(k);
+		if (!keepLegs) {
+			int dist = m.distance(schedule.node(k), schedule.node(k + 1));
+			if (dist != schedule.distToNext(k))
+				schedule.setDistToNext(k, dist);
+		} else if (!linked(k)) {
+			link(k); // no way there before (or no leg kept)
+		} else if (!open) {
+			if (leg.uses(from, to))
+				link(k);
+		} else {
+			int dist = m.distance(schedule.node(k), schedule.node(k + 1));
+			if (dist != Map.UNREACHABLE && dist < leg.remaining())
+				link(k);
+		}
+	}
+
+	/* Puts the schedule in an order the van can drive with the roads as they
+	 * are now, changing as little as it can: from here, the next stop is the
+	 * first one in the old order that can be got to (Map.canReach) and
+	 * isn't a dropoff before its pickup. Passengers not yet picked up whose
+	 * stops don't fit in that way are cancelled and added to back, and so
+	 * are any whose pickup would now overfill the van. Dropoffs of
+	 * passengers on board that can't be got to go last: the van takes them
+	 * there once a road opens. */
+	private void reachableOrder(java.util.ArrayList<Passenger> back) {
+		while (!schedule.isEmpty()) {
+			int len = schedule.size();
+			int[] order = new int[len];
+			boolean[] done = new boolean[len];
+			int n = 0;
+			for (int at = here; ; ) {
+				int next = -1;
+				for (int k = 0; k < len && next < 0; k++) {
+					if (done[k] || !m.canReach(at, schedule.node(k)))
+						continue;
+					int i = schedule.isPickup(k) ? -1 : schedule.find(schedule.pid(k), true);
+					if (i < 0 || done[i])
+						next = k;
+				}
+				if (next < 0)
+					break;
+				done[next] = true;
+				order[n++] = next;
+				at = schedule.node(next);
+			}
+			// whoever isn't on board yet and got left out goes back to dispatch
+			java.util.ArrayList<Passenger> out = new java.util.ArrayList<Passenger>();
+			for (int k = 0; k < len; k++) {
+				if (done[k])
+					continue;
+				int i = schedule.isPickup(k) ? k : schedule.find(schedule.pid(k), true);
+				if (i >= 0) {
+					if (!out.contains(schedule.passenger(i)))
+						out.add(schedule.passenger(i));
+				} else
+					order[n++] = k;
+			}
+			if (out.isEmpty()) {
+				boolean same = true;
+				for (int k = 0; k < len; k++)
+					same &= (order[k] == k);
+				if (!same)
+					reorder(schedule.getVersion(), order);
+				// putting a dropoff off can overfill the van at a later pickup
+				updateLoads();
+				for (int k = 0; k < schedule.size() && out.isEmpty(); k++) {
+					if (schedule.isPickup(k) && load[k] > capacity)
+						out.add(schedule.passenger(k));
+				}
+				if (out.isEmpty())
+					return;
+			}
+			for (Passenger p : out)
+				cancel(p);
+			back.addAll(out);
+		}
 	}
 	
 	/* print route of van, for checking */
 	public void printRoute(int vanID) {
 		if (route == null)
 			return;
-		int rl = route.length;
+		Address[] stops = route.addresses(m);
 		String s = "";
-		for (int i = 0; i < rl; i++) {
-			s += route[i] + "-";
+		for (int i = 0; i < stops.length; i++) {
+			s += stops[i] + "-";
 		}
 		System.out.println("Van " + vanID + " gets new route: " + s);
 	}
@@ -140,19 +362,15 @@ public class Van {
 	 * pick them up (pickdrop == true) or drop them off (pickdrop==false). */
 	public Passenger[] numWaiting(boolean waitingPick) {
 		int len = schedule.size();
-		LinkedList<PassengerPair> plist = new LinkedList<PassengerPair>();
-		for (int i = 0; i < len; i++) {
-			PassengerPair ith = schedule.get(i);
-			if (waitingPick && ith.p.pickdrop)
-				plist.add(ith);
-			else if (!waitingPick && !ith.p.pickdrop)
-				plist.add(ith);
-		}
-		int count = plist.size();
+		int count = 0;
+		for (int i = 0; i < len; i++)
+			if (schedule.isPickup(i) == waitingPick)
+				count++;
 		Passenger[] rv = new Passenger[count];
-		for (int i = 0; i < count; i++) {
-			rv[i] = plist.get(i).p;
-		}
+		count = 0;
+		for (int i = 0; i < len; i++)
+			if (schedule.isPickup(i) == waitingPick)
+				rv[count++] = schedule.passenger(i);
 		return rv;
 	}
 
@@ -164,88 +382,79 @@ public class Van {
 		pcost = dcost = Integer.MAX_VALUE;
 		int[] rv = new int[3];
 
-		PassengerPair aboveP, belowP, aboveD, belowD;
-		Address addressAbove, addressBelow;
 		int distOld, distAbove, distBelow;
+		int pickUp = m.id(student.pickUp);
+		int dropOff = m.id(student.dropOff);
 
 		if (schedule.isEmpty()) {
 			//System.out.println("For van at " + here	+ ", we are checking a empty sched:");
-			rv[0] = m.distance(here, student.pickUp);
+			rv[0] = m.distance(here, pickUp);
+			if (rv[0] == Map.UNREACHABLE || !m.canReach(pickUp, dropOff))
+				rv[0] = Integer.MAX_VALUE;
 			rv[1] = 0;
 			rv[2] = 0;
 			return rv;
 		}
 
-		if (schedule.size() == capacity) {
-			//System.out.println("full capacity!");
+		// no seat free before any event: full capacity, don't ask the map anything
+		int len = schedule.size();
+		updateLoads();
+		int room = 0;
+		while (room <= len && loadBefore(room) >= capacity)
+			room++;
+		if (room > len) {
 			rv[0] = Integer.MAX_VALUE;
-			rv[1] = 0;
-			rv[2] = 0;
+			rv[1] = -1;
+			rv[2] = -1;
 			return rv;
 		}
 
-		int len = schedule.size();
+		InsertDists d = new InsertDists(pickUp, dropOff);
+		int[] tail = tailWeights(currentTime);
 		//System.out.print("For van at " + here + ", we are checking a non-empty sched: ");
 		//System.out.println(schedule);
 		// *** DECIDE PICKUP ***
 		for (int i = 0; i <= len; i++) {
-			int weightsum = 1;
-			if (i == 0)
-				addressAbove = here;
-			else {
-				aboveP = schedule.get(i - 1);
-				addressAbove = (aboveP.p.pickdrop) ? aboveP.p.pickUp : aboveP.p.dropOff;
-			}
+			if (loadBefore(i) >= capacity)
+				continue;
+			// skip positions we can't drive to or on from (see Map.canReach)
+			if (d.toPick[i] == Map.UNREACHABLE || (i < len && d.fromPick[i] == Map.UNREACHABLE))
+				continue;
 			if (i == len) {
-				addressBelow = null;
-				extradist = m.distance(addressAbove, student.pickUp);
+				extradist = d.toPick[i];
 			} else {
-				belowP = schedule.get(i);
-				addressBelow = (belowP.p.pickdrop) ? belowP.p.pickUp
-						: belowP.p.dropOff;
-				distOld = m.distance(addressAbove, addressBelow);
-				distAbove = m.distance(addressAbove, student.pickUp);
-				distBelow = m.distance(student.pickUp, addressBelow);
+				distOld = d.legs[i];
+				distAbove = d.toPick[i];
+				distBelow = d.fromPick[i];
 				extradist = distAbove + distBelow - distOld;
 			}
-			for (int k = i; k < len; k++) {
-				weightsum += schedule.get(k).p.weight(currentTime);
-			}
-			if (extradist * weightsum < pcost) {
-				pcost = extradist * weightsum;
+			if (extradist * tail[i] < pcost) {
+				pcost = extradist * tail[i];
 				bestp = i;
 			}
 
 		}
 		// *** DECIDE DROPOFF ***
-		for (int j = bestp; j <= len; j++) {
-			int weightsum = 1;
-			if (j == 0)
-				addressAbove = here;
-			else {
-				aboveD = schedule.get(j - 1);
-				addressAbove = (aboveD.p.pickdrop) ? aboveD.p.pickUp : aboveD.p.dropOff;
-			}
+		for (int j = Math.max(bestp, 0); j <= len && bestp >= 0; j++) {
+			// riding past event j-1 takes a seat there too
+			if (j > bestp && load[j - 1] >= capacity)
+				break;
+			if (d.toDrop[j] == Map.UNREACHABLE || (j < len && d.fromDrop[j] == Map.UNREACHABLE))
+				continue;
 			if (j == len) {
-				addressBelow = null;
-				extradist = m.distance(addressAbove, student.dropOff);
+				extradist = d.toDrop[j];
 			} else {
-				belowD = schedule.get(j);
-				addressBelow = (belowD.p.pickdrop) ? belowD.p.pickUp : belowD.p.dropOff;
-				distOld = m.distance(addressAbove, addressBelow);
-				distAbove = m.distance(addressAbove, student.dropOff);
-				distBelow = m.distance(student.dropOff, addressBelow);
+				distOld = d.legs[j];
+				distAbove = d.toDrop[j];
+				distBelow = d.fromDrop[j];
 				extradist = distAbove + distBelow - distOld;
 			}
-			for (int k = j; k < len; k++) {
-				weightsum += schedule.get(k).p.weight(currentTime);
-			}
-			if (extradist * weightsum < dcost) {
-				dcost = extradist * weightsum;
+			if (extradist * tail[j] < dcost) {
+				dcost = extradist * tail[j];
 				bestd = j;
 			}
 		}
-		rv[0] = pcost + dcost;
+		rv[0] = (bestd < 0) ? Integer.MAX_VALUE : pcost + dcost;
 		rv[1] = bestp;
 		rv[2] = bestd;
 		return rv;
@@ -258,108 +467,279 @@ public class Van {
 		cost = Integer.MAX_VALUE;
 		int[] rv = new int[3];
 
-		PassengerPair aboveP, belowP, aboveD, belowD;
-		Address addressAboveP, addressBelowP, addressAboveD, addressBelowD;
 		int distOldP, distAboveP, distBelowP, distOldD, distAboveD, distBelowD;
+		int pickUp = m.id(student.pickUp);
+		int dropOff = m.id(student.dropOff);
 
 		if (schedule.isEmpty()) {
 			//System.out.println("For van at " + here + ", we are checking a empty sched:");
-			rv[0] = m.distance(here, student.pickUp);
+			rv[0] = m.distance(here, pickUp);
+			if (rv[0] == Map.UNREACHABLE || !m.canReach(pickUp, dropOff))
+				rv[0] = Integer.MAX_VALUE;
 			rv[1] = 0;
 			rv[2] = 1;
 			return rv;
 		}
 
-		/*if (isFull()) {
-			System.out.println(schedule);
-			System.out.println("full capacity!");
+		// A pickup at i and dropoff at j (j > i, counting the pickup) put one
+		// more passenger in the van from event i to event j - 2 of the
+		// schedule as it is, so the van has to have room on the way to i and
+		// after each of those. No room anywhere, no distances.
+		int len = schedule.size();
+		updateLoads();
+		int room = 0;
+		while (room <= len && loadBefore(room) >= capacity)
+			room++;
+		if (room > len) {
 			rv[0] = Integer.MAX_VALUE;
-			rv[1] = schedule.size();
-			rv[2] = schedule.size()+1;
+			rv[1] = -1;
+			rv[2] = -1;
 			return rv;
 		}
-		 */
-		int len = schedule.size();
+		InsertDists d = new InsertDists(pickUp, dropOff);
+		int[] tail = tailWeights(currentTime);
+		updateSlack(currentTime);
+		int maxRide = maxRide(d.toDrop[len + 1]);
+		int[] dcostAt = new int[len + 2]; // what a dropoff at j costs, for j >= i + 2
 		//System.out.print("For van at " + here + ", we are checking a non-empty sched: ");
 		//System.out.println(schedule);
+		// *** DECIDE DROPOFF ***
+		// Except right after the new pickup (j == i + 1), what a dropoff at j
+		// costs doesn't depend on where the pickup went. So work those out once,
+		// from the tail up: bestFrom[j] is the cheapest dropoff position from j
+		// on, the first one on ties, as trying j = i + 2, i + 3, ... would find;
+		// but no further than the van has room for, so it starts over below
+		// each event that fills the van.
+		int[] bestFrom = new int[len + 3];
+		int[] bestFromCost = new int[len + 3];
+		bestFrom[len + 2] = -1;
+		bestFromCost[len + 2] = Integer.MAX_VALUE;
+		for (int j = len + 1; j >= 2; j--) {
+			boolean fills = j - 1 < len && load[j - 1] >= capacity;
+			bestFrom[j] = fills ? -1 : bestFrom[j + 1];
+			bestFromCost[j] = fills ? Integer.MAX_VALUE : bestFromCost[j + 1];
+			dcostAt[j] = Integer.MAX_VALUE;
+			distAboveD = d.toDrop[j - 1];
+			if (distAboveD == Map.UNREACHABLE || (j <= len && d.fromDrop[j - 1] == Map.UNREACHABLE))
+				continue;
+			if (j == len + 1)
+				extradistD = distAboveD;
+			else
+				extradistD = distAboveD + d.fromDrop[j - 1] - d.legs[j - 1];
+			int dcost = tail[j - 1] * extradistD;
+			dcostAt[j] = dcost;
+			if (dcost < Integer.MAX_VALUE && dcost <= bestFromCost[j]) {
+				bestFrom[j] = j;
+				bestFromCost[j] = dcost;
+			}
+		}
 		// *** DECIDE PICKUP ***
 		for (int i = 0; i <= len; i++) {
-			int weightsumP = 1;
 			int pcost;
 			int dcost = Integer.MAX_VALUE;
 			int bestpd = -1;
-			if (i == 0)
-				addressAboveP = here;
-			else {
-				aboveP = schedule.get(i - 1);
-				addressAboveP = (aboveP.p.pickdrop) ? aboveP.p.pickUp : aboveP.p.dropOff;
-			}
+			if (loadBefore(i) >= capacity)
+				continue;
+			// skip positions we can't drive to or on from (see Map.canReach)
+			if (d.toPick[i] == Map.UNREACHABLE || (i < len && d.fromPick[i] == Map.UNREACHABLE))
+				continue;
 			if (i == len) {
-				addressBelowP = null;
-				extradistP = m.distance(addressAboveP, student.pickUp);
+				extradistP = d.toPick[i];
 			} else {
-				belowP = schedule.get(i);
-				addressBelowP = (belowP.p.pickdrop) ? belowP.p.pickUp : belowP.p.dropOff;
-				distOldP = m.distance(addressAboveP, addressBelowP);
-				distAboveP = m.distance(addressAboveP, student.pickUp);
-				distBelowP = m.distance(student.pickUp, addressBelowP);
+				distOldP = d.legs[i];
+				distAboveP = d.toPick[i];
+				distBelowP = d.fromPick[i];
 				extradistP = distAboveP + distBelowP - distOldP;
+				// everyone from event i on gets there extradistP later
+				if (extradistP > slack[i])
+					continue;
 			}
-			for (int k = i; k < len; k++) {
-				weightsumP += schedule.get(k).p.weight(currentTime);
-			}
-			pcost = weightsumP * extradistP;
-
-			for (int j = i + 1; j <= len + 1; j++) {
-				int weightsumD = 1;
-				if (j == i + 1)
-					addressAboveD = student.pickUp;
-				else {
-					aboveD = schedule.get(j - 2);
-					addressAboveD = (aboveD.p.pickdrop) ? aboveD.p.pickUp : aboveD.p.dropOff;
-				}
-				if (j == len + 1) {
-					addressBelowD = null;
-					extradistD = m.distance(addressAboveD, student.dropOff);
+			pcost = tail[i] * extradistP;
+
+			// dropoff straight after the new pickup
+			distAboveD = d.toDrop[len + 1];
+			if (distAboveD != Map.UNREACHABLE && (i == len || d.fromDrop[i] != Map.UNREACHABLE)) {
+				if (i == len) {
+					extradistD = distAboveD;
 				} else {
-					belowD = schedule.get(j - 1);
-					addressBelowD = (belowD.p.pickdrop) ? belowD.p.pickUp : belowD.p.dropOff;
-					distOldD = m.distance(addressAboveD, addressBelowD);
-					distAboveD = m.distance(addressAboveD, student.dropOff);
-					distBelowD = m.distance(student.dropOff, addressBelowD);
+					distOldD = d.fromPick[i];
+					distBelowD = d.fromDrop[i];
 					extradistD = distAboveD + distBelowD - distOldD;
 				}
-				for (int k = j; k < len + 1; k++) {
-					weightsumD += schedule.get(k - 1).p.weight(currentTime);
+				if ((i == len || extradistP + extradistD <= slack[i]) && tail[i] * extradistD < dcost) {
+					dcost = extradistD * tail[i];
+					bestpd = i + 1;
 				}
-				if (weightsumD * extradistD < dcost) {
-					dcost = extradistD * weightsumD;
-					bestpd = j;
+			}
+			// or further down, if the van has room after event i: the
+			// cheapest there, unless that breaks a time limit, in which case
+			// the cheapest that doesn't
+			if ((i == len || load[i] < capacity) && bestFromCost[i + 2] < dcost) {
+				if (inTime(d, i, bestFrom[i + 2], extradistP, maxRide)) {
+					dcost = bestFromCost[i + 2];
+					bestpd = bestFrom[i + 2];
+				} else {
+					for (int j = i + 2; j <= len + 1 && load[j - 2] < capacity; j++) {
+						if (dcostAt[j] < dcost && inTime(d, i, j, extradistP, maxRide)) {
+							dcost = dcostAt[j];
+							bestpd = j;
+						}
+					}
 				}
 			}
+			if (bestpd < 0)
+				continue;
 			if (pcost + dcost < cost) {
 				cost = pcost + dcost;
 				bestp = i;
 				bestd = bestpd;
 			}
 		}
-		rv[0] = cost*(1+len/10);
+		rv[0] = (bestp < 0) ? Integer.MAX_VALUE : cost*(1+len/10);
 		rv[1] = bestp;
 		rv[2] = bestd;
 		return rv;
 	}
 	
+	/* Whether a pickup at i (putting events i on off by delayP) and dropoff
+	 * at j >= i + 2 (putting events j - 1 on off by delayD more) keep to the
+	 * time limits, given delayP <= slack[i]; and the new passenger's ride
+	 * is from the pickup, past events i to j - 2, to the dropoff. Events
+	 * j - 1 on are put off by both detours, but a ride that starts at i or
+	 * below only gets longer by delayD. O(1) unless slack[j - 1] lies in
+	 * between, then a look at each event from j - 1 on. */
+	private boolean inTime(InsertDists d, int i, int j, int delayP, int maxRide) {
+		int len = schedule.size();
+		long ride = (long) arrive[j - 2] - arrive[i] + d.fromPick[i] + d.toDrop[j - 1];
+		if (ride > maxRide)
+			return false;
+		if (j > len)
+			return true;
+		int c = j - 1;
+		int delayD = d.toDrop[c] + d.fromDrop[c] - d.legs[c];
+		if (delayP + delayD <= slack[c])
+			return true;
+		if (delayD > slack[c])
+			return false;
+		for (int e = c; e < len; e++) {
+			int from = rideFrom[e];
+			if (from >= c)
+				continue; // picked up below the dropoff's detour too: the ride is no longer
+			if (allow[e] < ((from >= i) ? delayD : delayP + delayD))
+				return false;
+		}
+		return true;
+	}
+
+	/* longest ride a passenger whose direct ride is direct can be given */
+	private int maxRide(int direct) {
+		return (timeCap == Integer.MAX_VALUE) ? timeCap : Math.max(timeCap, direct);
+	}
+
+	/* Works out arrive, slack and the limits behind it again, if the
+	 * schedule has changed or time has moved on since last time (everything
+	 * is a tick nearer, or the van is late). A pickup can be put off until
+	 * its pickupBy, and the dropoff of someone on board until they've been
+	 * in the van maxRide: allow[k] is how much event k can be put off by,
+	 * and nothing if that's already past. For a dropoff whose pickup is
+	 * still to come (at rideFrom[k]), putting both off the same doesn't make
+	 * the ride any longer; allow[k] is how much longer the ride can get.
+	 * slack[k] is the least events k on can all be put off by: the least
+	 * allow of the events with a time limit from k on, and of the rides
+	 * that start above k and end at k or below. */
+	private void updateSlack(int currentTime) {
+		if (slackOf == schedule && slackVersion == schedule.getVersion() && slackTime == currentTime)
+			return;
+		int len = schedule.size();
+		if (arrive == null || arrive.length < len + 1) {
+			arrive = new int[2 * len + 1];
+			slack = new int[2 * len + 1];
+			allow = new int[2 * len + 1];
+			rideFrom = new int[2 * len + 1];
+		}
+		int driven = 0;
+		for (int k = 0; k < len; k++) {
+			int leg = (k == 0) ? firstLeg() : schedule.distToNext(k - 1);
+			driven += (leg == Map.UNREACHABLE) ? 0 : leg;
+			arrive[k] = driven;
+		}
+		slack[len] = Integer.MAX_VALUE;
+		for (int k = len - 1; k >= 0; k--) {
+			Passenger p = schedule.passenger(k);
+			int pick = schedule.isPickup(k) ? -1 : schedule.find(p.id, true);
+			long by;
+			rideFrom[k] = -1;
+			if (schedule.isPickup(k))
+				by = p.pickupBy;
+			else if (p.maxRide == Integer.MAX_VALUE)
+				by = Integer.MAX_VALUE;
+			else if (pick >= 0) {
+				rideFrom[k] = pick;
+				allow[k] = Math.max(0, p.maxRide - (arrive[k] - arrive[pick]));
+				slack[k] = slack[k + 1];
+				continue;
+			} else
+				by = (long) p.pickUpTime + p.maxRide;
+			long a = (by >= Integer.MAX_VALUE) ? Integer.MAX_VALUE : Math.max(0, by - currentTime - arrive[k]);
+			allow[k] = (int) a;
+			slack[k] = Math.min(allow[k], slack[k + 1]);
+		}
+		// a detour between a pickup and its dropoff makes that ride longer
+		for (int k = 0; k < len; k++) {
+			if (rideFrom[k] >= 0) {
+				for (int c = rideFrom[k] + 1; c <= k; c++)
+					slack[c] = Math.min(slack[c], allow[k]);
+			}
+		}
+		slackOf = schedule;
+		slackVersion = schedule.getVersion();
+		slackTime = currentTime;
+	}
+
+	/* No less than check(student, currentTime)[0]. Picking up at position i
+	 * adds at least Mdist(above, pickUp) + Mdist(pickUp, below) - the leg
+	 * from above to below, since no road is shorter than the Manhattan
+	 * distance; times the weights below, as in check(). The dropoff never
+	 * takes anything off. Just Mdist sums, against check()'s four searches. */
+	public int lowerBound(Passenger student, int currentTime) {
+		int pickUp = m.id(student.pickUp);
+		if (schedule.isEmpty())
+			return m.Mdist(here, pickUp);
+		int len = schedule.size();
+		int best = m.Mdist(schedule.node(len - 1), pickUp);
+		int tail = 1;
+		for (int i = len - 1; i >= 0 && best > 0; i--) {
+			tail += (int) schedule.passenger(i).weight(currentTime);
+			int above = (i == 0) ? here : schedule.node(i - 1);
+			int leg = (i == 0) ? firstLeg() : schedule.distToNext(i - 1);
+			if (leg == Map.UNREACHABLE)
+				return 0;
+			int extra = m.Mdist(above, pickUp) + m.Mdist(pickUp, schedule.node(i)) - leg;
+			best = Math.min(best, Math.max(extra, 0) * tail);
+		}
+		return best * (1 + len / 10);
+	}
+
+	/* Distance left to the first stop: what's left of the route, if it goes
+	 * there (no shorter path exists, or roadChanged would have rerouted), else
+	 * a map query. */
+	int firstLeg() {
+		if (route != null && route.end() == schedule.node(0))
+			return route.remaining();
+		return m.distance(here, schedule.node(0));
+	}
+
 	public int[] simpleCheck(Passenger student, int currentTime) {
 		int[] rv = new int[2];
 		if (schedule.isEmpty()) {
 			//System.out.println("For van at " + here	+ ", we are checking a empty sched:");
-			rv[0] = m.Mdist(here, student.pickUp);
+			rv[0] = m.Mdist(here, m.id(student.pickUp));
 			rv[1] = 0;
 			return rv;
 		}
 		// if the only scheduled event is a dropoff:
-		if (schedule.size()==1 && !schedule.getFirst().p.pickdrop) {
-			rv[0] = m.Mdist(here, student.pickUp);
+		if (schedule.size()==1 && !schedule.isPickup(0)) {
+			rv[0] = m.Mdist(here, m.id(student.pickUp));
 			rv[1] = 1;
 			return rv;
 		}
@@ -369,9 +749,8 @@ public class Van {
 		int len = schedule.size();
 		assert (len != 0);
 		for(int i=0; i<len; i++) {
-			PassengerPair event = schedule.get(i);
-			if(event.p.pickdrop) {
-				int dist = m.Mdist(event.p.pickUp, student.pickUp);
+			if(schedule.isPickup(i)) {
+				int dist = m.Mdist(schedule.node(i), m.id(student.pickUp));
 				//System.out.println("simplecheck dist="+dist);
 				//System.out.println("simplecheck rv0="+rv[0]);
 				if(dist < rv[0]) {
@@ -385,147 +764,260 @@ public class Van {
 
 	/* assign Passenger to van, with pickup at i and dropoff at j. */
 	public void assign(Passenger student, int i, int j) {
-		insert(student, i, true);
+		place(student, i, j);
+		System.out.println("sched: " + schedule);
+	}
+
+	/* assign, without printing the schedule */
+	void place(Passenger student, int i, int j) {
+		student.maxRide = maxRide(m.distance(m.id(student.pickUp), m.id(student.dropOff)));
+		if (pickupWindow > 0)
+			student.pickupBy = Math.min(student.pickupBy, student.callTime + pickupWindow);
+		insert(student, i, true, j != i + 1);
 		if (i == 0)
 			updateRoute();
-		insert(student, j, false);
-		System.out.println("sched: " + schedule);
+		insert(student, j, false, true);
+		reindex();
 	}
 	
 	/* assign Passenger to van, at the tail */
 	public void simpleAssign(Passenger student, int i) {
 		int len = schedule.size();
-		insert(student, i, true);
-		insert(student, len+1, false);
+		insert(student, i, true, i < len);
+		insert(student, len+1, false, true);
+		reindex();
 		System.out.println("simple sched: "+schedule);
 	}
 
-	/* Function to insert a pickup or dropoff event into van's schedule, and
-		recalculate distToNext for the events before and after. */
-	private void insert(Passenger student, int i, boolean pick) {
-		PassengerPair above, below;
-		Address addressAbove, addressBelow;
-		PassengerPair incoming = null;
-
+	/* Function to insert a pickup or dropoff event into van's schedule. The
+	 * leg that went from the event above to the one below gives way to a leg
+	 * into the new event and one on from it; with legBelow false the one on
+	 * is left to the next insert, which puts a dropoff right below. */
+	private void insert(Passenger student, int i, boolean pick, boolean legBelow) {
 		Passenger studentP = new Passenger(student.id, student.callTime, student.pickUp, student.dropOff);
 		studentP.pickdrop = true;
 
 		Passenger studentD = new Passenger(student.id, student.callTime, student.pickUp, student.dropOff);
 		studentD.pickdrop = false;
+		studentP.maxRide = studentD.maxRide = student.maxRide;
+		studentP.pickupBy = studentD.pickupBy = student.pickupBy;
 
 		student = (pick) ? studentP : studentD;
-		Address event = (student.pickdrop) ? student.pickUp : student.dropOff;
-
-		if (i == 0) {
-			// this must also be a pickup.
-			assert(pick == true);
-			above = null;
-			addressAbove = here;
-			if (schedule.isEmpty()) {
-				//System.out.print("van.insert at head when schedule empty -- ");
-				incoming = new PassengerPair(student, m.distance(student.pickUp, student.dropOff));
-			} else {
-				below = schedule.get(i);
-				addressBelow = (below.p.pickdrop) ? below.p.pickUp : below.p.dropOff;
-				//System.out.print("van.insert.i=0.schedule !Empty: ");
-				int distBelow = m.distance(student.pickUp, addressBelow);
-				incoming = new PassengerPair(student, distBelow);
+		int event = (student.pickdrop) ? m.id(student.pickUp) : m.id(student.dropOff);
+
+		// at 0 this must be a pickup, and the van's route takes the place of the leg above
+		assert(i > 0 || pick);
+		schedule.insert(i, event, student, pick, 0);
+		if (i > 0)
+			link(i - 1);
+		if (legBelow && i + 1 < schedule.size())
+			link(i);
+	}
+
+	/* Fills in the leg from event k to event k+1: the route, or with
+	 * keepLegs off, just its length. */
+	private void link(int k) {
+		int from = schedule.node(k), to = schedule.node(k + 1);
+		if (keepLegs)
+			schedule.setLeg(k, m.route(from, to));
+		else
+			schedule.setDistToNext(k, m.distance(from, to));
+	}
+
+	/* true if the schedule has a leg kept from event k to event k+1 */
+	private boolean linked(int k) {
+		Route leg = schedule.leg(k);
+		return leg != null && leg.start() == schedule.node(k) && leg.end() == schedule.node(k + 1);
+	}
+
+	/* tail[k] is 1 plus the weights of events k on, the weightsum that
+	 * check() and check1() give an insertion at k. (Adding a double to an int
+	 * drops the fraction each time, so it's the whole part of each weight
+	 * that counts.) */
+	private int[] tailWeights(int currentTime) {
+		int len = schedule.size();
+		int[] tail = new int[len + 1];
+		tail[len] = 1;
+		for (int k = len - 1; k >= 0; k--)
+			tail[k] = tail[k + 1] + (int) schedule.passenger(k).weight(currentTime);
+		return tail;
+	}
+
+	/* Every distance check() and check1() need to try a pickUp and dropOff at
+	 * each position, from four one-to-many searches instead of a few searches
+	 * per position. Index i of toPick and toDrop is the stop above position i
+	 * (here for i = 0, else event i-1); toDrop[len+1] is from pickUp. Index k
+	 * of fromPick, fromDrop and legs is event k, legs[k] being the distance
+	 * to it from the stop above. */
+	private class InsertDists {
+		int[] toPick, toDrop, fromPick, fromDrop, legs;
+
+		InsertDists(int pickUp, int dropOff) {
+			int len = schedule.size();
+			int[] stops = new int[len];
+			int[] above = new int[len + 2];
+			legs = new int[len];
+			above[0] = here;
+			for (int k = 0; k < len; k++) {
+				stops[k] = schedule.node(k);
+				above[k + 1] = stops[k];
+				// distToNext of the event above is the leg into the next one
+				if (k + 1 < len)
+					legs[k + 1] = schedule.distToNext(k);
 			}
-			//System.out.println("add incoming student to head of schedule: " + incoming);
-			schedule.addFirst(incoming);
-			return;
-		} else if (i > 0 && i == schedule.size()) {
-			// can be either.
-			above = schedule.get(i - 1);
-			addressAbove = (above.p.pickdrop) ? above.p.pickUp : above.p.dropOff;
-			below = null;
-			addressBelow = null;
-
-			above.distToNext = m.distance(addressAbove, event);
-			incoming = new PassengerPair(student, 0);
-			//System.out.println("add incoming student to tail of schedule: " + incoming);
-			schedule.addLast(incoming);
-			return;
-		} else {
-			//System.out.println("middle of sched:"+i+" out of length " + schedule.size());
-			above = schedule.get(i - 1);
-			addressAbove = (above.p.pickdrop) ? above.p.pickUp : above.p.dropOff;
-			below = schedule.get(i);
-			addressBelow = (below.p.pickdrop) ? below.p.pickUp : below.p.dropOff;
-			above.distToNext = m.distance(addressAbove, event);
-			int distBelow = m.distance(event, addressBelow);
-			incoming = new PassengerPair(student, distBelow);
-			//System.out.println("incoming student to middle of schedule:" + incoming);
-			schedule.add(i, incoming);
-			return;
+			above[len + 1] = pickUp;
+			if (len > 0)
+				legs[0] = m.distance(above[0], stops[0]);
+			toPick = m.distancesTo(above, pickUp);
+			toDrop = m.distancesTo(above, dropOff);
+			fromPick = m.distances(pickUp, stops);
+			fromDrop = m.distances(dropOff, stops);
 		}
+	}
 
+	/* for Benchmark, which checks check() against the old way of doing it */
+	Schedule getSchedule() {
+		return schedule;
 	}
 
 	/* retrieve Passenger, either waiting for pickup or dropoff. */
 	public Passenger find(Passenger p, boolean pickdrop) {
-		PassengerPair ith = getPP(p, pickdrop);
-		if (ith != null)
-			return ith.p;
+		int i = schedule.find(p.id, pickdrop);
+		if (i >= 0)
+			return schedule.passenger(i);
 		return null;
 	}
 
-	/* retrieve PP given passenger and pickdrop */
-	private PassengerPair getPP(Passenger p, boolean pickdrop) {
+	/* cancel a passenger who doesn't want pickup anymore. */
+	public boolean cancel(Passenger flake) {
+		int i = schedule.find(flake.id, true);
+		if (i < 0) {
+			System.out.println("error:trying to cancel a passenger, " + flake + ", that has no pickup scheduled");
+			return false;
+		}
+		// the dropoff is below the pickup, so taking it out first leaves i alone
+		int j = schedule.find(flake.id, false);
+		if (j >= 0)
+			splice(j);
+		splice(i);
+		// the van was on its way to the pickup
+		if (i == 0 && route != null)
+			updateRoute();
+		reindex();
+		return true;
+	}
+
+	/* takes event i out of the schedule, and gives the event above it a leg
+	 * to the one that was below. */
+	private void splice(int i) {
+		schedule.remove(i);
+		if (i == 0)
+			return;
+		if (i < schedule.size())
+			link(i - 1);
+		else
+			schedule.setDistToNext(i - 1, 0);
+	}
+
+	/* For ScheduleOptimizer, which works on a copy of the schedule: puts the
+	 * events in the order it found (event k becomes old event order[k]), as
+	 * long as nothing has changed the schedule since it was copied at
+	 * version. Legs between events that are still next to each other are
+	 * kept. Reroutes if the first stop changed. */
+	boolean reorder(int version, int[] order) {
+		if (schedule.getVersion() != version)
+			return false;
+		int first = schedule.node(0);
+		schedule.reorder(order);
 		int len = schedule.size();
-		for (int i = 0; i < len; i++) {
-			PassengerPair ith = schedule.get(i);
-			if (ith.p.id == p.id && ith.p.pickdrop == pickdrop)
-				return ith;
+		for (int k = 0; k + 1 < len; k++) {
+			if (!linked(k))
+				link(k);
 		}
-		return null;
+		schedule.setDistToNext(len - 1, 0);
+		if (route == null || schedule.node(0) != first)
+			updateRoute();
+		return true;
 	}
 
-	/* cancel a passenger who doesn't want pickup anymore. */
-	public boolean cancel(Passenger flake) {
-		PassengerPair cancelme = getPP(flake, true);
-		if (cancelme.p.pickdrop == true)
-			return schedule.remove(cancelme);
-		System.out.println("error:trying to cancel a passenger, " + flake + ", that has no pickup scheduled");
-		return false;
+	/* For Reassigner: takes over the schedule and route of copy (made with
+	 * Van(Van) and changed since), as long as nothing has changed this van's
+	 * schedule since it was at version. */
+	boolean adopt(Van copy, int version) {
+		if (schedule.getVersion() != version)
+			return false;
+		schedule = copy.schedule;
+		route = copy.route;
+		here = copy.here;
+		reindex();
+		return true;
 	}
-	/* check if van is full */
-	public boolean isFull() {		
-		return (schedule.size() >= capacity);
+
+	/* Sets the time limits check() keeps to, for passengers this van takes
+	 * from now on: no ride longer than timeCap (or than the direct ride, if
+	 * that's longer), and, for a pickupWindow over 0, no passenger put off
+	 * past callTime + pickupWindow by the ones after. (A passenger the van
+	 * can't get to that soon is still taken, and then not put off at all.) */
+	public void setLimits(int timeCap, int pickupWindow) {
+		this.timeCap = timeCap;
+		this.pickupWindow = pickupWindow;
 	}
-	
-	/* check if van is empty. */
-	public boolean isEmpty() {
-		return schedule.isEmpty();
+
+	/* Registers this van with index as van no. number. */
+	public void setIndex(VanIndex index, int number) {
+		this.index = index;
+		this.number = number;
+		reindex();
 	}
 
-	/* Subclass: PassengerPair holds a Passenger plus distToNext, i.e. distance
-		to van's next destination (not necessarily the passenger's dropOff
-		address). */
-	private class PassengerPair {
-		Passenger p;
-		int distToNext;
+	private void reindex() {
+		if (index != null)
+			index.update(number, here, !schedule.isEmpty());
+	}
 
-		public PassengerPair(Passenger p, int distToNext) {
-			this.p = p;
-			this.distToNext = distToNext;
-		}
+	/* check if van is full: as many passengers on board as it has seats */
+	public boolean isFull() {
+		updateLoads();
+		return onboard >= capacity;
+	}
 
-		public String toString() {
-			String s;
-			if (p.pickdrop)
-				s = "Pickup";
-			else
-				s = "Dropoff";
-			return s + " " + p + ",with distToNext=" + distToNext;
+	/* Works out the load profile again, if the schedule has changed since
+	 * last time. Passengers with a dropoff but no pickup left are on board. */
+	private void updateLoads() {
+		if (loadOf == schedule && loadVersion == schedule.getVersion())
+			return;
+		int len = schedule.size();
+		if (load == null || load.length < len)
+			load = new int[2 * len];
+		onboard = 0;
+		for (int k = 0; k < len; k++) {
+			if (!schedule.isPickup(k) && schedule.find(schedule.pid(k), true) < 0)
+				onboard++;
+		}
+		int n = onboard;
+		for (int k = 0; k < len; k++) {
+			n += schedule.isPickup(k) ? 1 : -1;
+			load[k] = n;
 		}
+		loadOf = schedule;
+		loadVersion = schedule.getVersion();
+	}
+
+	/* passengers in the van on the way to event i */
+	private int loadBefore(int i) {
+		return (i == 0) ? onboard : load[i - 1];
+	}
+	
+	/* check if van is empty. */
+	public boolean isEmpty() {
+		return schedule.isEmpty();
 	}
 
 	public String toString() {
 		int len = schedule.size();
 		String rv = "Van contains:";
 		for (int i = 0; i < len; i++) {
-			rv += schedule.get(i) + "\n";
+			rv += schedule.event(i) + "\n";
 		}
 		return rv;
 	}
@@ -0,0 +1,179 @@
+/*
+ * tclo, melissatan
+ *
+ * Where the vans of a fleet are, bucketed by map square, so dispatch can find
+ * the vans near a pickup without going through the whole fleet. The map is
+ * cut into size x size squares of corners; each square keeps the numbers of
+ * the vans at its corners. Vans tell the index when they move or when their
+ * schedule empties or fills (Van.setIndex), and each update is O(1).
+ *
+ * Squares are visited in rings around a corner: ring 0 is the corner's own
+ * square, ring r the squares r squares away (either way, or both). Every
+ * corner in ring r is at least ringDistance(r) from the one in the middle.
+ *
+ * Public Methods:
+ * -----------------
+ * void update(int van, int node, boolean busy) --> van is at node, with (busy) or without stops to make
+ * int[] busyVans() --> the vans with something on their schedule
+ * int numRings(int node) --> no. of rings it takes to cover the whole map from node
+ * int ringDistance(int r) --> no corner in ring r is closer (Mdist) than this
+ * int[] ring(int node, int r, boolean idleOnly) --> the vans in ring r around node
+ * int[] nearest(int node, int k, boolean byRoad) --> the k vans nearest node, by Mdist or by road
+ */
+
+import java.util.Arrays;
+
+public class VanIndex {
+	public static final int DEFAULT_SIZE = 8;
+
+	private final Map m;
+	private final int size;          // squares are size x size corners
+	private final int rows, cols;    // no. of squares down and across
+	private final int[][] square;    // van numbers in each square (first count[s] of them)
+	private final int[] count;
+	private final int[] node, at;    // where each van is, and its place in square[]
+	private final int[] busy, busyAt; // busy vans (first numBusy), and each van's place there (-1 if idle)
+	private int numBusy;
+
+	public VanIndex(Map m, int numVans) {
+		this(m, numVans, DEFAULT_SIZE);
+	}
+
+	public VanIndex(Map m, int numVans, int size) {
+		this.m = m;
+		this.size = size;
+		rows = (m.NUM_EW + size - 1) / size;
+		cols = (m.NUM_NS + size - 1) / size;
+		square = new int[rows * cols][];
+		count = new int[rows * cols];
+		node = new int[numVans];
+		at = new int[numVans];
+		busy = new int[numVans];
+		busyAt = new int[numVans];
+		Arrays.fill(node, -1);
+		Arrays.fill(busyAt, -1);
+	}
+
+	public void update(int van, int to, boolean isBusy) {
+		if (node[van] != to) {
+			if (node[van] >= 0)
+				removeFrom(squareOf(node[van]), van);
+			addTo(squareOf(to), van);
+			node[van] = to;
+		}
+		if (isBusy && busyAt[van] < 0) {
+			busyAt[van] = numBusy;
+			busy[numBusy++] = van;
+		} else if (!isBusy && busyAt[van] >= 0) {
+			int last = busy[--numBusy];
+			busy[busyAt[van]] = last;
+			busyAt[last] = busyAt[van];
+			busyAt[van] = -1;
+		}
+	}
+
+	public int[] busyVans() {
+		return Arrays.copyOf(busy, numBusy);
+	}
+
+	public int numRings(int from) {
+		int r = squareRow(from), c = squareCol(from);
+		return 1 + Math.max(Math.max(r, rows - 1 - r), Math.max(c, cols - 1 - c));
+	}
+
+	public int ringDistance(int r) {
+		return (r == 0) ? 0 : (r - 1) * size + 1;
+	}
+
+	public int[] ring(int from, int r, boolean idleOnly) {
+		int r0 = squareRow(from), c0 = squareCol(from);
+		int n = 0;
+		int[] rv = new int[16];
+		for (int i = Math.max(0, r0 - r); i <= Math.min(rows - 1, r0 + r); i++) {
+			// the top and bottom rows of the ring go all the way across, the rest are just its two sides
+			int step = (i == r0 - r || i == r0 + r) ? 1 : Math.max(1, 2 * r);
+			for (int j = c0 - r; j <= c0 + r; j += step) {
+				if (j < 0 || j >= cols)
+					continue;
+				int s = i * cols + j;
+				for (int k = 0; k < count[s]; k++) {
+					int van = square[s][k];
+					if (idleOnly && busyAt[van] >= 0)
+						continue;
+					if (n == rv.length)
+						rv = Arrays.copyOf(rv, 2 * n);
+					rv[n++] = van;
+				}
+			}
+		}
+		return Arrays.copyOf(rv, n);
+	}
+
+	/* Goes out ring by ring until the k nearest are certain: no van further
+	 * out can be closer than the k-th found so far. By road, the distances
+	 * come from one Map.distancesTo per ring; a road is never shorter than
+	 * Mdist, so the same stopping rule holds. Ties go to the lower van. */
+	public int[] nearest(int from, int k, boolean byRoad) {
+		long[] found = new long[16]; // distance << 32 | van, to sort by distance then van
+		int n = 0;
+		int rings = numRings(from);
+		for (int r = 0; r < rings; r++) {
+			if (n >= k) {
+				Arrays.sort(found, 0, n);
+				if ((found[k - 1] >>> 32) < ringDistance(r))
+					break;
+			}
+			int[] vans = ring(from, r, false);
+			int[] dist;
+			if (byRoad) {
+				int[] sources = new int[vans.length];
+				for (int i = 0; i < vans.length; i++)
+					sources[i] = node[vans[i]];
+				dist = m.distancesTo(sources, from);
+			} else {
+				dist = new int[vans.length];
+				for (int i = 0; i < vans.length; i++)
+					dist[i] = m.Mdist(node[vans[i]], from);
+			}
+			for (int i = 0; i < vans.length; i++) {
+				// vans that can't get there go last
+				long d = (dist[i] == Map.UNREACHABLE) ? Integer.MAX_VALUE : dist[i];
+				if (n == found.length)
+					found = Arrays.copyOf(found, 2 * n);
+				found[n++] = (d << 32) | vans[i];
+			}
+		}
+		Arrays.sort(found, 0, n);
+		int[] rv = new int[Math.min(k, n)];
+		for (int i = 0; i < rv.length; i++)
+			rv[i] = (int) found[i];
+		return rv;
+	}
+
+	private int squareRow(int id) {
+		return (id / m.NUM_NS) / size;
+	}
+
+	private int squareCol(int id) {
+		return (id % m.NUM_NS) / size;
+	}
+
+	private int squareOf(int id) {
+		return squareRow(id) * cols + squareCol(id);
+	}
+
+	private void addTo(int s, int van) {
+		if (square[s] == null)
+			square[s] = new int[4];
+		else if (count[s] == square[s].length)
+			square[s] = Arrays.copyOf(square[s], 2 * count[s]);
+		at[van] = count[s];
+		square[s][count[s]++] = van;
+	}
+
+	private void removeFrom(int s, int van) {
+		int last = square[s][--count[s]];
+		square[s][at[van]] = last;
+		at[last] = at[van];
+	}
+}